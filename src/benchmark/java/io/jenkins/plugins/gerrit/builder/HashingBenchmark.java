@@ -0,0 +1,96 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+import io.jenkins.plugins.gerrit.builder.fetcher.SyntheticChanges;
+
+/**
+ * Hashing and equality of submit groups, builds and build keys, used as keys
+ * of the submit group statuses and the throttle on every trigger and build
+ * event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashingBenchmark {
+    @Param({ "1", "8" })
+    int groupSize;
+
+    @Param({ "1000" })
+    int trackedGroups;
+
+    SubmitGroup submitGroup;
+    // An equal group that is a different instance
+    SubmitGroup sameSubmitGroup;
+    Build build;
+    BuildKey buildKey;
+    Map<SubmitGroup, SubmitGroupBuildStatus> statuses = new HashMap<SubmitGroup, SubmitGroupBuildStatus>();
+    Set<BuildKey> buildKeys = new HashSet<BuildKey>();
+
+    @Setup
+    public void setup() {
+        // Only topics, so that each group has about groupSize changes
+        SyntheticChanges changes = new SyntheticChanges(42, 50).generate(trackedGroups * groupSize, 0,
+                groupSize > 1 ? 1 : 0, groupSize);
+        List<SubmitGroup> groups = new ArrayList<SubmitGroup>(changes.getSubmitGroups());
+        for (SubmitGroup group : groups) {
+            statuses.put(group, new SubmitGroupBuildStatus());
+            Build b = new Build(group, group.first().project, group.first().branch);
+            buildKeys.add(new BuildKey(b, "job-" + group.first().project));
+        }
+        submitGroup = groups.get(groups.size() / 2);
+        sameSubmitGroup = changes.getSubmitGroups().get(groups.size() / 2);
+        build = new Build(submitGroup, submitGroup.first().project, submitGroup.first().branch);
+        buildKey = new BuildKey(new Build(sameSubmitGroup, build.project, build.branch),
+                "job-" + build.project);
+    }
+
+    @Benchmark
+    public int submitGroupHashCode() {
+        return submitGroup.hashCode();
+    }
+
+    @Benchmark
+    public boolean submitGroupEquals() {
+        return submitGroup.equals(sameSubmitGroup);
+    }
+
+    @Benchmark
+    public SubmitGroupBuildStatus submitGroupLookup() {
+        return statuses.get(sameSubmitGroup);
+    }
+
+    @Benchmark
+    public int buildHashCode() {
+        return build.hashCode();
+    }
+
+    @Benchmark
+    public void buildKeyLookup(Blackhole blackhole) {
+        blackhole.consume(buildKeys.contains(buildKey));
+    }
+}
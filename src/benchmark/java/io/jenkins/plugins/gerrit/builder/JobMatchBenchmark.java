@@ -0,0 +1,61 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.plugins.git.GitSCM;
+import io.jenkins.plugins.gerrit.builder.fetcher.SyntheticChanges;
+
+/**
+ * Matching a Gerrit project against the remote URLs of all jobs, done for each
+ * build of each submit group on every refresh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JobMatchBenchmark {
+    @Param({ "100", "1000", "5000" })
+    int jobs;
+
+    List<PluginImpl.JobInfo> jobInfos = new ArrayList<PluginImpl.JobInfo>();
+    String project;
+
+    @Setup
+    public void setup() {
+        // Measure the matching, not the console output of the INFO logging
+        java.util.logging.Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        for (int i = 0; i < jobs; i++) {
+            // The job itself is not needed to match projects
+            jobInfos.add(new PluginImpl.JobInfo(null,
+                    new GitSCM("https://gerrit.example.com/a/" + SyntheticChanges.projectName(i) + ".git")));
+        }
+        project = SyntheticChanges.projectName(jobs / 2);
+    }
+
+    @Benchmark
+    public List<PluginImpl.JobInfo> matchesProject() {
+        List<PluginImpl.JobInfo> matching = new ArrayList<PluginImpl.JobInfo>();
+        for (PluginImpl.JobInfo jobInfo : jobInfos) {
+            if (jobInfo.matchesProject(project)) {
+                matching.add(jobInfo);
+            }
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,180 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TransportBundleStream;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Applying submit previews to a workspace with submodules, as done by every
+ * build on an agent, and parsing a single bundle into a repository with
+ * GitBundle compared to fetching it with TransportBundleStream as before.
+ *
+ * Run with "-prof gc" for the allocations per change, and see
+ * {@link ApplyHarness} for the time and allocations of each phase.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ApplyBenchmark {
+    private static final PrintStream QUIET = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    @State(Scope.Benchmark)
+    public static class WorkspaceState {
+        @Param({ "10", "100" })
+        int submodules;
+
+        @Param({ "1", "10" })
+        int changedSubmodules;
+
+        @Param({ "false", "true" })
+        boolean sparse;
+
+        SyntheticWorkspace workspace;
+        GerritChangeFetcher fetcher;
+        int number;
+
+        @Setup
+        public void setup() throws IOException, GitAPIException {
+            workspace = new SyntheticWorkspace(42, Files.createTempDirectory("apply-benchmark").toFile(), submodules,
+                    100, 4096);
+        }
+
+        // Each change is applied once, on top of the previous one
+        @Setup(Level.Invocation)
+        public void createChange() throws IOException {
+            number = workspace.createChange(changedSubmodules, 3);
+            fetcher = new GerritChangeFetcher(null, QUIET);
+            fetcher.setStagedBundle(workspace.getBundle(number));
+            fetcher.setSparseSubmodules(sparse);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            workspace.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BundleState {
+        @Param({ "100", "1000" })
+        int files;
+
+        @Param({ "10", "100" })
+        int changedFiles;
+
+        File root;
+        SyntheticWorkspace workspace;
+        // A bare clone of the project before the change
+        File template;
+        byte[] bundle;
+        File target;
+        Repository repo;
+
+        @Setup
+        public void setup() throws IOException, GitAPIException {
+            root = Files.createTempDirectory("bundle-benchmark").toFile();
+            workspace = new SyntheticWorkspace(42, new File(root, "workspace"), 1, files, 4096);
+            Repository server = workspace.getRepository(SyntheticChanges.projectName(0));
+            template = new File(root, "template");
+            Git.cloneRepository().setBare(true).setURI(server.getDirectory().getAbsolutePath())
+                    .setDirectory(template).call().close();
+
+            ObjectId previous = server.resolve(Constants.R_HEADS + SyntheticWorkspace.BRANCH);
+            workspace.createChange(1, changedFiles);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SyntheticWorkspace.writeBundle(out, server,
+                    server.resolve(Constants.R_HEADS + SyntheticWorkspace.BRANCH), previous);
+            bundle = out.toByteArray();
+        }
+
+        @Setup(Level.Invocation)
+        public void copyTemplate() throws IOException {
+            target = new File(root, "target");
+            FileUtils.delete(target, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+            copy(template, target);
+            repo = new FileRepositoryBuilder().setGitDir(target).setBare().setMustExist(true).build();
+        }
+
+        private static void copy(File from, File to) throws IOException {
+            if (from.isDirectory()) {
+                to.mkdirs();
+                for (String name : from.list()) {
+                    copy(new File(from, name), new File(to, name));
+                }
+            } else {
+                Files.copy(from.toPath(), to.toPath());
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void closeTarget() {
+            repo.close();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            workspace.close();
+            FileUtils.delete(root, FileUtils.RECURSIVE | FileUtils.RETRY);
+        }
+    }
+
+    @Benchmark
+    public FetchStrategy prepareForBuild(WorkspaceState state) throws Exception {
+        return state.fetcher.prepareForBuild(state.workspace.getWorkspace(), SyntheticChanges.SUPERPROJECT,
+                SyntheticWorkspace.BRANCH, state.number, 1, null, FetchStrategy.SUBMIT_PREVIEW);
+    }
+
+    @Benchmark
+    public ObjectId gitBundle(BundleState state) throws IOException {
+        String ref = Constants.R_HEADS + SyntheticWorkspace.BRANCH;
+        return GitBundle.read(new ByteArrayInputStream(state.bundle)).apply(state.repo, ref, ref);
+    }
+
+    @Benchmark
+    public FetchResult transportBundleStream(BundleState state) throws IOException, URISyntaxException {
+        RefSpec refSpec = new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*");
+        try (TransportBundleStream transport = new TransportBundleStream(state.repo, new URIish("in-memory://"),
+                new ByteArrayInputStream(state.bundle))) {
+            return transport.fetch(NullProgressMonitor.INSTANCE, Collections.singleton(refSpec));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies changes to a {@link SyntheticWorkspace} with
+ * {@link GerritChangeFetcher#prepareForBuild(File, String, String, int, int)},
+ * like a build on an agent does after the submit preview was downloaded.
+ * Prints the end to end time of each change and the time, allocations and
+ * bytes written of each phase: opening the bundle, fetch, checkout, reset and
+ * submodule update.
+ *
+ * Allocations and bytes written are measured per thread, so they are only
+ * complete with --apply-threads 1. Bytes written are the bytes passed to write
+ * calls as counted by Linux in /proc/thread-self/io.
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:java \
+ *     -Dexec.mainClass=io.jenkins.plugins.gerrit.builder.fetcher.ApplyHarness \
+ *     -Dexec.args="--submodules 100 --changed 10 --sparse true"
+ * </pre>
+ */
+public class ApplyHarness {
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("submodules", "50");
+        options.put("files", "100");
+        options.put("file-size", "4096");
+        options.put("changed", "5");
+        options.put("changed-files", "3");
+        options.put("changes", "20");
+        options.put("warmup", "5");
+        options.put("sparse", "false");
+        options.put("apply-threads", "1");
+        options.put("dir", "");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", known options are "
+                        + options.keySet());
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        File root = options.get("dir").isEmpty() ? Files.createTempDirectory("apply-harness").toFile()
+                : new File(options.get("dir"));
+        int changedSubmodules = Integer.parseInt(options.get("changed"));
+        int changedFiles = Integer.parseInt(options.get("changed-files"));
+        int changes = Integer.parseInt(options.get("changes"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+
+        long start = System.nanoTime();
+        try (SyntheticWorkspace workspace = new SyntheticWorkspace(42, root,
+                Integer.parseInt(options.get("submodules")), Integer.parseInt(options.get("files")),
+                Integer.parseInt(options.get("file-size")))) {
+            System.out.println("Created " + options.get("submodules") + " submodules in " + root + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+            PhaseRecorder recorder = new PhaseRecorder();
+            PrintStream quiet = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            });
+            for (int i = 0; i < warmup + changes; i++) {
+                int number = workspace.createChange(changedSubmodules, changedFiles);
+                GerritChangeFetcher fetcher = new GerritChangeFetcher(null, quiet);
+                fetcher.setStagedBundle(workspace.getBundle(number));
+                fetcher.setSparseSubmodules(Boolean.parseBoolean(options.get("sparse")));
+                fetcher.setApplyThreads(Integer.parseInt(options.get("apply-threads")));
+                if (i >= warmup) {
+                    fetcher.setListener(recorder);
+                }
+
+                recorder.mark();
+                start = System.nanoTime();
+                fetcher.prepareForBuild(workspace.getWorkspace(), SyntheticChanges.SUPERPROJECT,
+                        SyntheticWorkspace.BRANCH, number, 1);
+                long nanos = System.nanoTime() - start;
+                fetcher.close();
+                System.out.println((i < warmup ? "Warmup change " : "Change ") + number + ": "
+                        + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+                if (i >= warmup) {
+                    recorder.add("total", nanos);
+                }
+            }
+            recorder.print(changes);
+        }
+    }
+
+    /**
+     * Sums up the time of each phase, and the allocations and bytes written by
+     * the thread since its previous phase.
+     */
+    static class PhaseRecorder implements FetcherListener {
+        private static final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private static final Path THREAD_IO = Paths.get("/proc/thread-self/io");
+
+        // Allocated and written bytes of each thread at the end of its last phase
+        private final ThreadLocal<long[]> last = new ThreadLocal<long[]>();
+        // Count, nanos, allocated and written bytes of each phase
+        private final Map<String, long[]> phases = new TreeMap<String, long[]>();
+        // Allocated and written bytes of the thread calling prepareForBuild
+        private long[] totalStart;
+        private final long[] total = new long[2];
+
+        private static long[] counters() {
+            return new long[] { threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()), written() };
+        }
+
+        private static long written() {
+            try {
+                for (String line : Files.readAllLines(THREAD_IO, StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("wchar:")) {
+                        return Long.parseLong(line.substring("wchar:".length()).trim());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Not Linux
+            }
+            return 0;
+        }
+
+        /**
+         * Start measuring the calling thread.
+         */
+        void mark() {
+            totalStart = counters();
+            last.set(totalStart);
+        }
+
+        @Override
+        public void onRestCall(String endpoint, long durationNanos, boolean success) {
+        }
+
+        @Override
+        public void onApplyPhase(String phase, String project, long durationNanos) {
+            long[] now = counters();
+            long[] before = last.get();
+            last.set(now);
+            synchronized (phases) {
+                long[] sums = phases.get(phase);
+                if (sums == null) {
+                    sums = new long[4];
+                    phases.put(phase, sums);
+                }
+                sums[0]++;
+                sums[1] += durationNanos;
+                // The first phase on a thread of the apply pool is not known
+                if (before != null) {
+                    sums[2] += now[0] - before[0];
+                    sums[3] += now[1] - before[1];
+                }
+            }
+        }
+
+        void add(String name, long nanos) {
+            long[] now = counters();
+            total[0] += now[0] - totalStart[0];
+            total[1] += now[1] - totalStart[1];
+            synchronized (phases) {
+                long[] sums = phases.get(name);
+                if (sums == null) {
+                    sums = new long[4];
+                    phases.put(name, sums);
+                }
+                sums[0]++;
+                sums[1] += nanos;
+                sums[2] = total[0];
+                sums[3] = total[1];
+            }
+        }
+
+        void print(int changes) {
+            System.out.println(String.format("%-16s %8s %12s %14s %14s", "Per change", "count", "time ms",
+                    "allocated KB", "written KB"));
+            synchronized (phases) {
+                for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+                    long[] sums = entry.getValue();
+                    System.out.println(String.format("%-16s %8.1f %12.2f %14d %14d", entry.getKey(),
+                            (double) sums[0] / changes, sums[1] / 1e6 / changes, sums[2] / 1024 / changes,
+                            sums[3] / 1024 / changes));
+                }
+            }
+        }
+    }
+}
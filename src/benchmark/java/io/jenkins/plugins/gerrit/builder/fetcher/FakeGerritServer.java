@@ -0,0 +1,420 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Gerrit REST endpoints used by
+ * {@link GerritChangeFetcher}, serving the changes of a
+ * {@link SyntheticChanges}:
+ *
+ * <ul>
+ * <li>changes/?q=, open changes with n and S/start paging, or change:N. Only
+ * published changes are open once {@link #publishOnly()} was called. commit:X
+ * finds the merged change at the tip of a branch.</li>
+ * <li>changes/ID/revisions/N/submit_type, always MERGE_IF_NECESSARY</li>
+ * <li>changes/ID/submitted_together</li>
+ * <li>changes/ID/revisions/N/preview_submit?format=zip, with a bundle header
+ * for each project of the submit group and the superproject</li>
+ * <li>changes/ID/revisions/N/review</li>
+ * </ul>
+ *
+ * Each endpoint can be given a latency and a share of requests that fail with
+ * HTTP 500. Requests are counted per endpoint, using the endpoint names of
+ * {@link GerritChangeFetcher}.
+ */
+public class FakeGerritServer implements Closeable {
+    private static final String JSON_PREFIX = ")]}'\n";
+    private static final int DEFAULT_LIMIT = 500;
+
+    private final SyntheticChanges changes;
+    private final Map<String, ChangeInfo> changesById = new HashMap<String, ChangeInfo>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Gson gson;
+
+    private final Map<String, Long> latencyMillis = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Double> failureRates = new ConcurrentHashMap<String, Double>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Random random = new Random(42);
+    // Numbers of the changes returned as open, all changes when null
+    private volatile Set<Integer> published;
+
+    /**
+     * @param threads Number of requests handled in parallel, like the httpd
+     *                threads of Gerrit
+     */
+    public FakeGerritServer(SyntheticChanges changes, int threads) throws IOException {
+        this(changes, threads, 0);
+    }
+
+    /**
+     * @param port Port to listen on, 0 for any free port
+     */
+    public FakeGerritServer(SyntheticChanges changes, int threads, int port) throws IOException {
+        this.changes = changes;
+        for (ChangeInfo change : changes.getChanges()) {
+            changesById.put(Integer.toString(change._number), change);
+            changesById.put(change.id, change);
+        }
+        gson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                .registerTypeAdapter(Timestamp.class, new TimestampSerializer()).create();
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    FakeGerritServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gerrit timestamps are UTC with nanoseconds, e.g. "2020-09-13 12:26:40.000000000".
+     */
+    private static class TimestampSerializer implements JsonSerializer<Timestamp> {
+        @Override
+        public JsonElement serialize(Timestamp timestamp, Type type, JsonSerializationContext context) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return new JsonPrimitive(format.format(timestamp) + "000000");
+        }
+    }
+
+    /**
+     * Only return the changes passed to {@link #publish(int)} as open from now
+     * on, e.g. once their patchset-created event was sent.
+     */
+    public void publishOnly() {
+        published = ConcurrentHashMap.newKeySet();
+    }
+
+    public void publish(int changeNumber) {
+        published.add(changeNumber);
+    }
+
+    public FakeGerritServer start() {
+        server.start();
+        return this;
+    }
+
+    /**
+     * @return The URL to configure as Gerrit server
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param endpoint E.g. {@link GerritChangeFetcher#ENDPOINT_SUBMIT_PREVIEW}, or
+     *                 null for all endpoints without a latency of their own
+     */
+    public void setLatency(String endpoint, long millis) {
+        latencyMillis.put(endpoint != null ? endpoint : "", millis);
+    }
+
+    /**
+     * @param endpoint E.g. {@link GerritChangeFetcher#ENDPOINT_REVIEW}, or null for
+     *                 all endpoints without a failure rate of their own
+     * @param rate     Share of the requests that fail, 0..1
+     */
+    public void setFailureRate(String endpoint, double rate) {
+        failureRates.put(endpoint != null ? endpoint : "", rate);
+    }
+
+    /**
+     * @return Number of requests per endpoint
+     */
+    public Map<String, Long> getRequests() {
+        return snapshot(requests);
+    }
+
+    /**
+     * @return Number of injected failures per endpoint
+     */
+    public Map<String, Long> getFailures() {
+        return snapshot(failures);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private static Map<String, Long> snapshot(Map<String, AtomicLong> counts) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        if (path.startsWith("/a/")) {
+            path = path.substring(2);
+        }
+        Map<String, List<String>> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String[] parts = path.split("/");
+        // "", "changes", ID, ...
+        if (parts.length < 2 || !parts[1].equals("changes")) {
+            // E.g. the login of the REST client
+            send(exchange, 200, "text/plain", new byte[0]);
+            return;
+        }
+
+        String endpoint;
+        if (parts.length == 2) {
+            endpoint = GerritChangeFetcher.ENDPOINT_QUERY;
+        } else if (parts.length == 4 && parts[3].equals("submitted_together")) {
+            endpoint = GerritChangeFetcher.ENDPOINT_SUBMITTED_TOGETHER;
+        } else if (parts.length == 6 && parts[5].equals("preview_submit")) {
+            endpoint = GerritChangeFetcher.ENDPOINT_SUBMIT_PREVIEW;
+        } else if (parts.length == 6 && parts[5].equals("review")) {
+            endpoint = GerritChangeFetcher.ENDPOINT_REVIEW;
+        } else if (parts.length == 6 && parts[5].equals("submit_type")) {
+            endpoint = GerritChangeFetcher.ENDPOINT_SUBMIT_TYPE;
+        } else {
+            send(exchange, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        count(requests, endpoint);
+        sleep(endpoint);
+        if (shouldFail(endpoint)) {
+            count(failures, endpoint);
+            send(exchange, 500, "text/plain", "Injected failure".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        if (endpoint.equals(GerritChangeFetcher.ENDPOINT_QUERY)) {
+            query(exchange, query);
+            return;
+        }
+        ChangeInfo change = changesById.get(decode(parts[2]));
+        if (change == null) {
+            send(exchange, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+        } else if (endpoint.equals(GerritChangeFetcher.ENDPOINT_SUBMITTED_TOGETHER)) {
+            List<ChangeInfo> together = changes.getSubmittedTogether(change._number);
+            // Gerrit returns an empty list for a change submitted alone
+            sendJson(exchange, together.size() > 1 ? together : Collections.<ChangeInfo>emptyList());
+        } else if (endpoint.equals(GerritChangeFetcher.ENDPOINT_SUBMIT_PREVIEW)) {
+            send(exchange, 200, "application/x-zip", submitPreview(change));
+        } else if (endpoint.equals(GerritChangeFetcher.ENDPOINT_SUBMIT_TYPE)) {
+            sendJson(exchange, "MERGE_IF_NECESSARY");
+        } else {
+            drain(exchange.getRequestBody());
+            sendJson(exchange, Collections.singletonMap("labels", Collections.emptyMap()));
+        }
+    }
+
+    private void query(HttpExchange exchange, Map<String, List<String>> query) throws IOException {
+        String q = first(query, "q", "status:open");
+        // The fetcher encodes its query itself, so it is encoded twice
+        if (q.contains("%")) {
+            q = decode(q);
+        }
+        List<ChangeInfo> result;
+        if (q.startsWith("change:")) {
+            ChangeInfo change = changesById.get(q.substring("change:".length()).trim());
+            result = change != null ? Collections.singletonList(change) : Collections.<ChangeInfo>emptyList();
+        } else if (q.startsWith("commit:")) {
+            // Only merged changes are found, the rest of the query is not checked
+            ChangeInfo change = changes.getMergedChange(q.substring("commit:".length()).split(" ")[0]);
+            result = change != null ? Collections.singletonList(change) : Collections.<ChangeInfo>emptyList();
+        } else if (published == null) {
+            // All changes are open, the age is not taken into account
+            result = changes.getChanges();
+        } else {
+            result = new ArrayList<ChangeInfo>();
+            for (ChangeInfo change : changes.getChanges()) {
+                if (published.contains(change._number)) {
+                    result.add(change);
+                }
+            }
+        }
+        int start = Integer.parseInt(first(query, "S", first(query, "start", "0")));
+        int limit = Integer.parseInt(first(query, "n", Integer.toString(DEFAULT_LIMIT)));
+        int end = Math.min(result.size(), start + limit);
+        List<ChangeInfo> page = start < end ? result.subList(start, end) : Collections.<ChangeInfo>emptyList();
+        JsonArray json = gson.toJsonTree(page).getAsJsonArray();
+        if (end < result.size() && json.size() > 0) {
+            json.get(json.size() - 1).getAsJsonObject().addProperty("_more_changes", true);
+        }
+        sendJson(exchange, json);
+    }
+
+    /**
+     * A zip with a bundle for each project of the submit group, and for the
+     * superproject since it subscribes to all submodules.
+     */
+    private byte[] submitPreview(ChangeInfo change) throws IOException {
+        List<ChangeInfo> together = changes.getSubmittedTogether(change._number);
+        if (together.isEmpty()) {
+            together = Collections.singletonList(change);
+        }
+        Set<String> projects = new LinkedHashSet<String>();
+        Map<String, String> branches = new HashMap<String, String>();
+        for (ChangeInfo c : together) {
+            projects.add(c.project);
+            branches.put(c.project, c.branch);
+        }
+        if (!projects.contains(SyntheticChanges.SUPERPROJECT)) {
+            projects.add(SyntheticChanges.SUPERPROJECT);
+            branches.put(SyntheticChanges.SUPERPROJECT, change.branch);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (String project : projects) {
+                zip.putNextEntry(new ZipEntry(project + ".git"));
+                String header = "# v2 git bundle\n" + String.format("%040x", project.hashCode() & 0xffffffffL)
+                        + " refs/heads/" + branches.get(project) + "\n\n";
+                zip.write(header.getBytes(StandardCharsets.UTF_8));
+                zip.write(new byte[] { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 });
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void sleep(String endpoint) {
+        Long millis = latencyMillis.get(endpoint);
+        if (millis == null) {
+            millis = latencyMillis.get("");
+        }
+        if (millis != null && millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean shouldFail(String endpoint) {
+        Double rate = failureRates.get(endpoint);
+        if (rate == null) {
+            rate = failureRates.get("");
+        }
+        if (rate == null || rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private static void count(Map<String, AtomicLong> counts, String endpoint) {
+        AtomicLong count = counts.get(endpoint);
+        if (count == null) {
+            counts.putIfAbsent(endpoint, new AtomicLong());
+            count = counts.get(endpoint);
+        }
+        count.incrementAndGet();
+    }
+
+    private void sendJson(HttpExchange exchange, Object object) throws IOException {
+        String json = JSON_PREFIX + (object instanceof JsonElement ? object.toString() : gson.toJson(object));
+        send(exchange, 200, "application/json; charset=UTF-8", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        bytesSent.addAndGet(body.length);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // Discard
+        }
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        Map<String, List<String>> result = new HashMap<String, List<String>>();
+        if (rawQuery == null) {
+            return result;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            String name = decode(equals >= 0 ? parameter.substring(0, equals) : parameter);
+            String value = equals >= 0 ? decode(parameter.substring(equals + 1)) : "";
+            List<String> values = result.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                result.put(name, values);
+            }
+            values.add(value);
+        }
+        return result;
+    }
+
+    private static String first(Map<String, List<String>> query, String name, String defaultValue) {
+        List<String> values = query.get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : defaultValue;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of submit preview bundle headers and the reduction of submit groups,
+ * both done for every open change on each refresh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FetcherBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class BundleState {
+        // Branches in the bundle, each with a /meta ref that is filtered out
+        @Param({ "1", "10", "100" })
+        int branches;
+
+        byte[] bundle;
+
+        @Setup
+        public void setup() {
+            bundle = SyntheticChanges.bundle(branches);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class GroupState {
+        @Param({ "100", "1000" })
+        int changes;
+
+        @Param({ "0.3" })
+        double chainShare;
+
+        @Param({ "0.2" })
+        double topicShare;
+
+        List<SubmitGroup> submitGroups;
+
+        // The groups are modified by the reduction
+        @Setup(Level.Invocation)
+        public void setup() {
+            submitGroups = new SyntheticChanges(42, 50).generate(changes, chainShare, topicShare, 8)
+                    .getSubmitGroups();
+        }
+    }
+
+    @Benchmark
+    public Collection<GitRef> findRefs(BundleState state) throws IOException {
+        return GerritChangeFetcher.findRefs(new ByteArrayInputStream(state.bundle));
+    }
+
+    @Benchmark
+    public Map<String, SubmitGroup> reduceSubmitGroups(GroupState state) {
+        return GerritChangeFetcher.reduceSubmitGroups(state.submitGroups);
+    }
+}
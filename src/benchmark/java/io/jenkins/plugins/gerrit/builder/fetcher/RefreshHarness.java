@@ -0,0 +1,129 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.urswolfer.gerrit.client.rest.GerritAuthData;
+import com.urswolfer.gerrit.client.rest.GerritRestApiFactory;
+
+/**
+ * Runs the Gerrit side of refreshes against a {@link FakeGerritServer}: fetch
+ * the open changes page by page, group them, find the required builds of each
+ * group and select its fetch strategy, like PluginImpl does. Prints the time,
+ * REST calls and bytes of each refresh.
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:java \
+ *     -Dexec.mainClass=io.jenkins.plugins.gerrit.builder.fetcher.RefreshHarness \
+ *     -Dexec.args="--changes 2000 --latency 20 --failure-rate 0.01"
+ * </pre>
+ */
+public class RefreshHarness {
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("changes", "500");
+        options.put("projects", "50");
+        options.put("chain-share", "0.3");
+        options.put("topic-share", "0.2");
+        options.put("max-length", "8");
+        options.put("latency", "0");
+        options.put("preview-latency", "");
+        options.put("failure-rate", "0");
+        options.put("threads", "8");
+        options.put("refreshes", "5");
+        options.put("page-size", "100");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", known options are "
+                        + options.keySet());
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseArgs(args);
+        SyntheticChanges changes = new SyntheticChanges(42, Integer.parseInt(options.get("projects"))).generate(
+                Integer.parseInt(options.get("changes")), Double.parseDouble(options.get("chain-share")),
+                Double.parseDouble(options.get("topic-share")), Integer.parseInt(options.get("max-length")));
+
+        try (FakeGerritServer server = new FakeGerritServer(changes, Integer.parseInt(options.get("threads")))) {
+            server.setLatency(null, Long.parseLong(options.get("latency")));
+            if (!options.get("preview-latency").isEmpty()) {
+                server.setLatency(GerritChangeFetcher.ENDPOINT_SUBMIT_PREVIEW,
+                        Long.parseLong(options.get("preview-latency")));
+            }
+            server.setFailureRate(null, Double.parseDouble(options.get("failure-rate")));
+            server.start();
+            System.out.println("Fake Gerrit at " + server.getUrl() + " with " + changes.getChanges().size()
+                    + " open changes");
+
+            GerritApi gerritApi = new GerritRestApiFactory()
+                    .create(new GerritAuthData.Basic(server.getUrl(), "jenkins", "secret"));
+            int refreshes = Integer.parseInt(options.get("refreshes"));
+            int pageSize = Integer.parseInt(options.get("page-size"));
+            for (int i = 0; i < refreshes; i++) {
+                refresh(i, gerritApi, pageSize);
+            }
+            System.out.println("Server requests " + server.getRequests() + ", injected failures "
+                    + server.getFailures() + ", " + server.getBytesSent() + " bytes sent");
+        }
+    }
+
+    private static void refresh(int refresh, GerritApi gerritApi, int pageSize) throws IOException {
+        final GerritChangeFetcher fetcher = new GerritChangeFetcher(gerritApi, null);
+        // The synthetic changes are older than any age limit
+        fetcher.setOpenChangesQuery(0, pageSize, 0);
+        long start = System.nanoTime();
+        int openChanges = 0;
+        int submitGroups = 0;
+        int builds = 0;
+        int directRefs = 0;
+        int failedGroups = 0;
+        String error = null;
+        try {
+            final SubmitGroupReducer reducer = new SubmitGroupReducer();
+            openChanges = fetcher.getOpenChanges(new GerritChangeFetcher.OpenChangesHandler() {
+                @Override
+                public void onPage(Set<GerritChange> changes) throws RestApiException {
+                    fetcher.addSubmitGroups(changes, reducer);
+                }
+            });
+            AbstractMap<String, SubmitGroup> groups = reducer.getSubmitGroups();
+            submitGroups = groups.size();
+            for (SubmitGroup submitGroup : groups.values()) {
+                Set<Build> required;
+                try {
+                    required = fetcher.getRequiredBuilds(submitGroup);
+                } catch (IOException | RestApiException e) {
+                    failedGroups++;
+                    continue;
+                }
+                builds += required.size();
+                try {
+                    if (FetchStrategy.select(submitGroup, required, fetcher) == FetchStrategy.DIRECT_REF) {
+                        directRefs++;
+                    }
+                } catch (RestApiException e) {
+                    // PluginImpl uses the submit preview
+                }
+            }
+        } catch (RestApiException e) {
+            error = e.toString();
+        } finally {
+            fetcher.close();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Refresh " + refresh + ": " + millis + " ms, " + openChanges + " open changes, "
+                + submitGroups + " submit groups (" + failedGroups + " failed), " + builds + " builds, "
+                + directRefs + " direct ref fetches, REST calls " + fetcher.getRestCallCounts() + ", "
+                + fetcher.getBytesDownloaded() + " bytes downloaded" + (error != null ? ", failed: " + error : ""));
+    }
+}
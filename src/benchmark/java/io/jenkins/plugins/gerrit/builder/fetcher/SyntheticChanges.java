@@ -0,0 +1,211 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.CommitInfo;
+import com.google.gerrit.extensions.common.LabelInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+
+/**
+ * Generates open changes shaped like those of a busy Gerrit server: most
+ * changes are alone, some are stacked in relation chains and some are part of
+ * topics spanning several projects. The result of submittedTogether is
+ * modelled as the ancestors in the chain plus the rest of the topic. The first
+ * change of a chain and each change of a topic have a merged change at the tip
+ * of their branch as parent.
+ *
+ * The same seed always gives the same changes, so runs are comparable.
+ */
+public class SyntheticChanges {
+    public static final String SUPERPROJECT = "superproject";
+
+    private final Random random;
+    private final int projects;
+    private int nextNumber = 1000;
+
+    private final List<ChangeInfo> changes = new ArrayList<ChangeInfo>();
+    // Changes submitted together with each change, including itself
+    private final Map<Integer, List<ChangeInfo>> submittedTogether = new HashMap<Integer, List<ChangeInfo>>();
+    // Merged change at the tip of each project and branch, by commit
+    private final Map<String, ChangeInfo> mergedChanges = new HashMap<String, ChangeInfo>();
+    private int nextMergedNumber = 1;
+
+    /**
+     * @param projects Number of submodule projects, changes are spread over
+     *                 these and the superproject
+     */
+    public SyntheticChanges(long seed, int projects) {
+        this.random = new Random(seed);
+        this.projects = projects;
+    }
+
+    public static String projectName(int project) {
+        return "submodule" + project;
+    }
+
+    /**
+     * Add changes until there are at least the given number of them.
+     *
+     * @param chainShare Share of changes in relation chains, 0..1
+     * @param topicShare Share of changes in topics, 0..1
+     * @param maxLength  Max length of a chain and max size of a topic
+     */
+    public SyntheticChanges generate(int count, double chainShare, double topicShare, int maxLength) {
+        while (changes.size() < count) {
+            double shape = random.nextDouble();
+            int length = 2 + random.nextInt(Math.max(1, maxLength - 1));
+            if (shape < chainShare) {
+                addChain(length);
+            } else if (shape < chainShare + topicShare) {
+                addTopic(length);
+            } else {
+                addChain(1);
+            }
+        }
+        return this;
+    }
+
+    private String randomProject() {
+        // A few changes touch the superproject itself
+        int project = random.nextInt(projects + 1);
+        return project == projects ? SUPERPROJECT : projectName(project);
+    }
+
+    private void addChain(int length) {
+        String project = randomProject();
+        List<ChangeInfo> ancestors = new ArrayList<ChangeInfo>();
+        for (int i = 0; i < length; i++) {
+            String parent = i > 0 ? ancestors.get(i - 1).currentRevision : mergedParent(project, "master");
+            ChangeInfo change = change(nextNumber++, 1 + random.nextInt(5), project, "master", null, parent);
+            ancestors.add(change);
+            changes.add(change);
+            submittedTogether.put(change._number, new ArrayList<ChangeInfo>(ancestors));
+        }
+    }
+
+    private void addTopic(int size) {
+        String topic = "topic-" + nextNumber;
+        List<ChangeInfo> topicChanges = new ArrayList<ChangeInfo>();
+        for (int i = 0; i < size; i++) {
+            String project = randomProject();
+            ChangeInfo change = change(nextNumber++, 1 + random.nextInt(5), project, "master", topic,
+                    mergedParent(project, "master"));
+            topicChanges.add(change);
+            changes.add(change);
+        }
+        for (ChangeInfo change : topicChanges) {
+            submittedTogether.put(change._number, topicChanges);
+        }
+    }
+
+    /**
+     * @return The commit of the merged change at the tip of a branch
+     */
+    private String mergedParent(String project, String branch) {
+        // Apart from the commits of the open changes, see change()
+        String commit = "f" + String.format("%039x", (project + "/" + branch).hashCode() & 0xffffffffL);
+        if (!mergedChanges.containsKey(commit)) {
+            ChangeInfo merged = change(nextMergedNumber++, 1, project, branch, null, null);
+            merged.revisions = Collections.singletonMap(commit, merged.revisions.get(merged.currentRevision));
+            merged.revisions.get(commit).commit.commit = commit;
+            merged.currentRevision = commit;
+            mergedChanges.put(commit, merged);
+        }
+        return commit;
+    }
+
+    /**
+     * @param parent The commit of the parent, or null
+     */
+    public static ChangeInfo change(int number, int patchset, String project, String branch, String topic,
+            String parent) {
+        ChangeInfo change = new ChangeInfo();
+        change._number = number;
+        change.id = project + "~" + branch + "~I" + String.format("%040x", number);
+        change.project = project;
+        change.branch = branch;
+        change.topic = topic;
+        change.subject = "Change " + number;
+        change.created = new Timestamp(1600000000000L + number * 60000L);
+        RevisionInfo revision = new RevisionInfo();
+        revision._number = patchset;
+        revision.created = new Timestamp(change.created.getTime() + patchset * 60000L);
+        change.currentRevision = String.format("%040x", number * 100 + patchset);
+        revision.commit = new CommitInfo();
+        revision.commit.commit = change.currentRevision;
+        revision.commit.parents = new ArrayList<CommitInfo>();
+        if (parent != null) {
+            CommitInfo parentInfo = new CommitInfo();
+            parentInfo.commit = parent;
+            revision.commit.parents.add(parentInfo);
+        }
+        change.revisions = Collections.singletonMap(change.currentRevision, revision);
+        change.labels = new HashMap<String, LabelInfo>();
+        return change;
+    }
+
+    public List<ChangeInfo> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return The merged change with the given commit, or null
+     */
+    public ChangeInfo getMergedChange(String commit) {
+        return mergedChanges.get(commit);
+    }
+
+    /**
+     * @return The changes submitted together with a change, including itself
+     */
+    public List<ChangeInfo> getSubmittedTogether(int number) {
+        List<ChangeInfo> together = submittedTogether.get(number);
+        return together != null ? together : Collections.<ChangeInfo>emptyList();
+    }
+
+    /**
+     * @return The submit group of each change, as built by
+     *         {@link GerritChangeFetcher#getSubmitGroups(java.util.Set)} before
+     *         the groups are reduced
+     */
+    public List<SubmitGroup> getSubmitGroups() {
+        List<SubmitGroup> groups = new ArrayList<SubmitGroup>();
+        for (ChangeInfo change : changes) {
+            groups.add(new SubmitGroup(getSubmittedTogether(change._number)));
+        }
+        return groups;
+    }
+
+    /**
+     * The header of a submit preview bundle of the superproject, with a branch
+     * and the Gerrit meta ref for each change, followed by an empty pack.
+     */
+    public static byte[] bundle(int branches) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder header = new StringBuilder("# v2 git bundle\n");
+        for (int i = 0; i < branches; i++) {
+            String sha1 = String.format("%040x", i + 1);
+            header.append('-').append(String.format("%040x", i + 100000)).append(" Parent\n");
+            header.append(sha1).append(" refs/heads/branch").append(i).append('\n');
+            header.append(sha1).append(" refs/changes/").append(i % 100).append('/').append(i)
+                    .append("/meta\n");
+        }
+        header.append('\n');
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(headerBytes, 0, headerBytes.length);
+        // "PACK", version 2, 0 objects, no trailer needed since only the header is
+        // read
+        byte[] pack = { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 };
+        out.write(pack, 0, pack.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,260 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * A superproject with submodules on a local "server", a workspace cloned from
+ * it, and submit preview zips for new changes, shaped like the ones Gerrit
+ * returns: a bundle per changed project, with the previous branch head as
+ * prerequisite.
+ *
+ * Layout below the root directory:
+ *
+ * <pre>
+ * server/superproject    bare, .gitmodules with "../submoduleN" urls
+ * server/submoduleN      bare
+ * workspace              clone of the superproject with its submodules
+ * bundles/N.zip          submit preview of change N
+ * </pre>
+ *
+ * The same seed always gives the same repositories, so runs are comparable.
+ */
+public class SyntheticWorkspace implements Closeable {
+    public static final String BRANCH = "master";
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Gerrit Builder", "builder@example.com", 1600000000000L,
+            0);
+
+    private final Random random;
+    private final File root;
+    private final int files;
+    private final int fileSize;
+    private final Project superproject;
+    private final List<Project> submodules = new ArrayList<Project>();
+    private int nextNumber = 1000;
+
+    private static class Project {
+        final String name;
+        final Repository repo;
+        // Files, or gitlinks for the submodules of the superproject
+        final SortedMap<String, ObjectId> entries = new TreeMap<String, ObjectId>();
+        final Set<String> gitlinks = new HashSet<String>();
+        ObjectId head;
+
+        Project(File serverDir, String name) throws IOException {
+            this.name = name;
+            this.repo = new FileRepositoryBuilder().setGitDir(new File(serverDir, name)).setBare().build();
+            repo.create(true);
+            repo.updateRef(Constants.HEAD).link(Constants.R_HEADS + BRANCH);
+        }
+    }
+
+    /**
+     * @param root           Directory to create the repositories in, must not
+     *                       exist or be empty
+     * @param submoduleCount Number of submodules of the superproject
+     * @param files          Number of files in each submodule
+     * @param fileSize       Size of each file in bytes
+     */
+    public SyntheticWorkspace(long seed, File root, int submoduleCount, int files, int fileSize)
+            throws IOException, GitAPIException {
+        this.random = new Random(seed);
+        this.root = root;
+        this.files = files;
+        this.fileSize = fileSize;
+
+        File serverDir = new File(root, "server");
+        StringBuilder gitModules = new StringBuilder();
+        for (int i = 0; i < submoduleCount; i++) {
+            Project submodule = new Project(serverDir, SyntheticChanges.projectName(i));
+            for (int file = 0; file < files; file++) {
+                submodule.entries.put(String.format("file%05d.txt", file), insertBlob(submodule.repo, content()));
+            }
+            commit(submodule, "Initial commit");
+            submodules.add(submodule);
+            gitModules.append("[submodule \"").append(submodule.name).append("\"]\n");
+            gitModules.append("\tpath = ").append(submodule.name).append('\n');
+            gitModules.append("\turl = ../").append(submodule.name).append('\n');
+            gitModules.append("\tbranch = ").append(BRANCH).append('\n');
+        }
+
+        superproject = new Project(serverDir, SyntheticChanges.SUPERPROJECT);
+        superproject.entries.put(Constants.DOT_GIT_MODULES,
+                insertBlob(superproject.repo, gitModules.toString().getBytes(StandardCharsets.UTF_8)));
+        for (Project submodule : submodules) {
+            superproject.entries.put(submodule.name, submodule.head);
+            superproject.gitlinks.add(submodule.name);
+        }
+        commit(superproject, "Initial commit");
+
+        // Relative submodule urls are resolved against the url of the superproject
+        Git.cloneRepository().setURI(new File(serverDir, SyntheticChanges.SUPERPROJECT).getAbsolutePath())
+                .setDirectory(getWorkspace()).setBranch(BRANCH).setCloneSubmodules(true).call().close();
+        new File(root, "bundles").mkdirs();
+    }
+
+    public File getWorkspace() {
+        return new File(root, "workspace");
+    }
+
+    /**
+     * @return A server repository, e.g. to apply bundles to a copy of it
+     */
+    public Repository getRepository(String project) {
+        if (project.equals(SyntheticChanges.SUPERPROJECT)) {
+            return superproject.repo;
+        }
+        for (Project submodule : submodules) {
+            if (submodule.name.equals(project)) {
+                return submodule.repo;
+            }
+        }
+        throw new IllegalArgumentException("No project " + project);
+    }
+
+    private byte[] content() {
+        // Lines of random letters, compresses a bit like source code
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = i % 80 == 79 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return content;
+    }
+
+    private static ObjectId insertBlob(Repository repo, byte[] content) throws IOException {
+        try (ObjectInserter inserter = repo.newObjectInserter()) {
+            ObjectId blob = inserter.insert(Constants.OBJ_BLOB, content);
+            inserter.flush();
+            return blob;
+        }
+    }
+
+    private static void commit(Project project, String message) throws IOException {
+        try (ObjectInserter inserter = project.repo.newObjectInserter()) {
+            // No subdirectories, so the entries are already in git tree order
+            TreeFormatter tree = new TreeFormatter();
+            for (Map.Entry<String, ObjectId> entry : project.entries.entrySet()) {
+                tree.append(entry.getKey(),
+                        project.gitlinks.contains(entry.getKey()) ? FileMode.GITLINK : FileMode.REGULAR_FILE,
+                        entry.getValue());
+            }
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(inserter.insert(tree));
+            if (project.head != null) {
+                commit.setParentId(project.head);
+            }
+            commit.setAuthor(AUTHOR);
+            commit.setCommitter(AUTHOR);
+            commit.setMessage(message);
+            ObjectId commitId = inserter.insert(commit);
+            inserter.flush();
+
+            RefUpdate update = project.repo.updateRef(Constants.R_HEADS + BRANCH);
+            update.setNewObjectId(commitId);
+            update.forceUpdate();
+            project.head = commitId;
+        }
+    }
+
+    /**
+     * Create a change touching some submodules and the gitlinks in the
+     * superproject, and its submit preview zip. The server branches are moved
+     * as if the change was submitted, so the next change builds on it.
+     *
+     * @param changedSubmodules Number of submodules changed
+     * @param changedFiles      Number of files changed in each of them
+     * @return The number of the change, its zip is {@link #getBundle(int)}
+     */
+    public int createChange(int changedSubmodules, int changedFiles) throws IOException {
+        int number = nextNumber++;
+        List<Project> shuffled = new ArrayList<Project>(submodules);
+        Collections.shuffle(shuffled, random);
+        List<Project> changed = shuffled.subList(0, Math.min(changedSubmodules, shuffled.size()));
+
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(getBundle(number)))) {
+            for (Project submodule : changed) {
+                ObjectId previous = submodule.head;
+                for (int i = 0; i < changedFiles; i++) {
+                    String file = String.format("file%05d.txt", random.nextInt(files));
+                    submodule.entries.put(file, insertBlob(submodule.repo, content()));
+                }
+                commit(submodule, "Change " + number);
+                writeBundle(zip, submodule, previous);
+                superproject.entries.put(submodule.name, submodule.head);
+            }
+            ObjectId previous = superproject.head;
+            commit(superproject, "Change " + number);
+            writeBundle(zip, superproject, previous);
+        }
+        return number;
+    }
+
+    public File getBundle(int number) {
+        return new File(new File(root, "bundles"), number + ".zip");
+    }
+
+    /**
+     * Write a git bundle of the branch of a project, thin against the previous
+     * commit like the bundles in a submit preview.
+     *
+     * @param previous Commit assumed to be present, or null for a full bundle
+     */
+    static void writeBundle(OutputStream out, Repository repo, ObjectId head, ObjectId previous) throws IOException {
+        BundleWriter writer = new BundleWriter(repo);
+        writer.include(Constants.R_HEADS + BRANCH, head);
+        if (previous != null) {
+            try (RevWalk walk = new RevWalk(repo)) {
+                writer.assume(walk.parseCommit(previous));
+            }
+        }
+        writer.writeBundle(NullProgressMonitor.INSTANCE, out);
+    }
+
+    private static void writeBundle(ZipOutputStream zip, Project project, ObjectId previous) throws IOException {
+        zip.putNextEntry(new ZipEntry(project.name + Constants.DOT_GIT));
+        writeBundle(zip, project.repo, project.head, previous);
+        zip.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        superproject.repo.close();
+        for (Project submodule : submodules) {
+            submodule.repo.close();
+        }
+        FileUtils.delete(root, FileUtils.RECURSIVE | FileUtils.RETRY);
+    }
+}
@@ -0,0 +1,105 @@
+package io.jenkins.plugins.gerrit.builder.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.kohsuke.stapler.StaplerResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of webhook requests, done on a request handling thread for every
+ * event Gerrit sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebHookBenchmark {
+    @Param({ "patchset-created", "comment-added", "ref-updated" })
+    String type;
+
+    GerritWebHook webHook = new GerritWebHook();
+    byte[] body;
+    StaplerResponse response = (StaplerResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { StaplerResponse.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+            });
+
+    @Setup
+    public void setup() {
+        // Measure the parsing, not the console output of the INFO logging
+        java.util.logging.Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        body = WebHookEvents.event(type, 12345, 3, "submodule1", "master").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static HttpServletRequest post(final byte[] body) {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        final ServletInputStream servletIn = new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+        };
+        return (HttpServletRequest) Proxy.newProxyInstance(WebHookBenchmark.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getMethod")) {
+                            return "POST";
+                        } else if (method.getName().equals("getInputStream")) {
+                            return servletIn;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Benchmark
+    public Optional<GerritProjectEvent> getBody() throws IOException {
+        return webHook.getBody(post(body), response);
+    }
+}
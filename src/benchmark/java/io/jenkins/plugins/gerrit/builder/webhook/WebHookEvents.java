@@ -0,0 +1,62 @@
+package io.jenkins.plugins.gerrit.builder.webhook;
+
+/**
+ * JSON bodies of the Gerrit events handled by the webhook, shaped like those
+ * sent by the Gerrit webhooks plugin.
+ */
+public class WebHookEvents {
+    private WebHookEvents() {
+    }
+
+    /**
+     * @param type E.g. "patchset-created", "comment-added" (resetting Verified)
+     *             or "ref-updated"
+     */
+    public static String event(String type, int change, int patchset, String project, String branch) {
+        long now = System.currentTimeMillis() / 1000;
+        StringBuilder json = new StringBuilder();
+        json.append("{\"type\":\"").append(type).append("\",");
+        json.append("\"eventCreatedOn\":").append(now).append(',');
+        if (type.equals("ref-updated")) {
+            json.append("\"refUpdate\":{\"project\":\"").append(project).append("\",");
+            json.append("\"refName\":\"refs/heads/").append(branch).append("\",");
+            json.append("\"oldRev\":\"").append(sha1(change)).append("\",");
+            json.append("\"newRev\":\"").append(sha1(change + 1)).append("\"},");
+            json.append("\"submitter\":{\"name\":\"Gerrit Code Review\",\"username\":\"gerrit\"}");
+        } else {
+            json.append("\"project\":{\"name\":\"").append(project).append("\"},");
+            json.append("\"refName\":\"refs/heads/").append(branch).append("\",");
+            json.append("\"change\":{\"project\":\"").append(project).append("\",");
+            json.append("\"branch\":\"").append(branch).append("\",");
+            json.append("\"id\":\"I").append(sha1(change)).append("\",");
+            json.append("\"number\":").append(change).append(',');
+            json.append("\"subject\":\"Change ").append(change).append("\",");
+            json.append("\"owner\":{\"name\":\"Developer\",\"email\":\"dev@example.com\",\"username\":\"dev\"},");
+            json.append("\"url\":\"https://gerrit.example.com/c/").append(project).append("/+/").append(change)
+                    .append("\",");
+            json.append("\"commitMessage\":\"Change ").append(change).append("\\n\\nChange-Id: I")
+                    .append(sha1(change)).append("\\n\",");
+            json.append("\"createdOn\":").append(now - 3600).append(",\"status\":\"NEW\"},");
+            json.append("\"patchSet\":{\"number\":").append(patchset).append(',');
+            json.append("\"revision\":\"").append(sha1(change * 100 + patchset)).append("\",");
+            json.append("\"ref\":\"refs/changes/").append(String.format("%02d", change % 100)).append('/')
+                    .append(change).append('/').append(patchset).append("\",");
+            json.append("\"uploader\":{\"name\":\"Developer\",\"username\":\"dev\"},");
+            json.append("\"createdOn\":").append(now).append(",\"kind\":\"REWORK\"},");
+            if (type.equals("comment-added")) {
+                json.append("\"author\":{\"name\":\"CI\",\"username\":\"ci\"},");
+                json.append("\"approvals\":[{\"type\":\"Verified\",\"description\":\"Verified\",");
+                json.append("\"value\":\"0\",\"oldValue\":\"1\"},");
+                json.append("{\"type\":\"Code-Review\",\"description\":\"Code-Review\",\"value\":\"0\"}],");
+                json.append("\"comment\":\"Patch Set ").append(patchset).append(": -Verified\",");
+            }
+            json.append("\"uploader\":{\"name\":\"Developer\",\"username\":\"dev\"}");
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    private static String sha1(int seed) {
+        return String.format("%040x", seed);
+    }
+}
@@ -0,0 +1,312 @@
+package io.jenkins.plugins.gerrit.builder.webhook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.FakeGerritServer;
+import io.jenkins.plugins.gerrit.builder.fetcher.SyntheticChanges;
+
+/**
+ * Sends Gerrit events to the webhook of a test Jenkins at a fixed rate, e.g. to
+ * simulate a mass rebase, and reports how the plugin copes:
+ *
+ * <ul>
+ * <li>HTTP responses of the webhook</li>
+ * <li>Webhooks received and dropped, and refreshes requested and run, i.e. how
+ * many were coalesced, from /gerrit-builder/stats</li>
+ * <li>Latency from sending a patchset-created event until the change has
+ * builds in /gerrit-builder/api/json</li>
+ * </ul>
+ *
+ * Synthetic events are for the changes of a {@link FakeGerritServer} started on
+ * --gerrit-port, which must be configured as the Gerrit server of the test
+ * Jenkins. A change is only open in the fake Gerrit once its event is sent, so
+ * that no refresh finds it earlier. Recorded events, one JSON event per line, are replayed with
+ * --replay, then the Gerrit server configured in Jenkins is used.
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:java \
+ *     -Dexec.mainClass=io.jenkins.plugins.gerrit.builder.webhook.WebHookLoadGenerator \
+ *     -Dexec.args="--jenkins http://localhost:8080/jenkins/ --rate 50 --events 2000"
+ * </pre>
+ */
+public class WebHookLoadGenerator {
+    private static final Gson gson = new Gson();
+
+    private final Map<String, String> options;
+    private final String jenkins;
+    private final String authorization;
+
+    private final Map<String, AtomicLong> responses = new ConcurrentHashMap<String, AtomicLong>();
+    // Send and first queued time of each change and patch set
+    private final Map<String, Long> sent = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> queued = new ConcurrentHashMap<String, Long>();
+    // The fake Gerrit of synthetic events, null when replaying
+    private FakeGerritServer gerrit;
+
+    WebHookLoadGenerator(Map<String, String> options) {
+        this.options = options;
+        String url = options.get("jenkins");
+        this.jenkins = url.endsWith("/") ? url : url + "/";
+        if (!options.get("user").isEmpty()) {
+            String credentials = options.get("user") + ":" + options.get("token");
+            authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        } else {
+            authorization = null;
+        }
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("jenkins", "http://localhost:8080/jenkins/");
+        options.put("user", "");
+        options.put("token", "");
+        options.put("rate", "10");
+        options.put("events", "500");
+        options.put("senders", "8");
+        options.put("replay", "");
+        options.put("gerrit-port", "8081");
+        options.put("projects", "50");
+        options.put("start-delay", "0");
+        options.put("wait", "300");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", known options are "
+                        + options.keySet());
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        WebHookLoadGenerator generator = new WebHookLoadGenerator(options);
+        if (!options.get("replay").isEmpty()) {
+            generator.run(Files.readAllLines(Paths.get(options.get("replay")), StandardCharsets.UTF_8));
+            return;
+        }
+
+        int events = Integer.parseInt(options.get("events"));
+        SyntheticChanges changes = new SyntheticChanges(42, Integer.parseInt(options.get("projects")))
+                .generate(events, 0.3, 0.2, 8);
+        List<String> bodies = new ArrayList<String>();
+        for (ChangeInfo change : changes.getChanges().subList(0, events)) {
+            int patchset = change.revisions.get(change.currentRevision)._number;
+            bodies.add(WebHookEvents.event("patchset-created", change._number, patchset, change.project,
+                    change.branch));
+        }
+        try (FakeGerritServer gerrit = new FakeGerritServer(changes, 8,
+                Integer.parseInt(options.get("gerrit-port")))) {
+            gerrit.publishOnly();
+            gerrit.start();
+            generator.gerrit = gerrit;
+            System.out.println("Fake Gerrit with " + events + " changes at " + gerrit.getUrl()
+                    + ", it must be the Gerrit server of the Jenkins under test");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("start-delay"))));
+            generator.run(bodies);
+            System.out.println("Fake Gerrit requests " + gerrit.getRequests());
+        }
+    }
+
+    void run(List<String> bodies) throws Exception {
+        Map<String, Long> statsBefore = getRefreshStats();
+        double rate = Double.parseDouble(options.get("rate"));
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        ExecutorService senders = Executors.newFixedThreadPool(Integer.parseInt(options.get("senders")));
+        Thread poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "api/json poller");
+        poller.setDaemon(true);
+        poller.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < bodies.size(); i++) {
+            // Keep the rate even if sending falls behind for a while
+            long wait = start + i * intervalNanos - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            final String body = bodies.get(i);
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(body);
+                }
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.HOURS);
+        long sendMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Sent " + bodies.size() + " events in " + sendMillis + " ms, responses "
+                + new TreeMap<String, AtomicLong>(responses));
+
+        // Wait for the changes to be queued
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("wait")));
+        while (queued.size() < sent.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1000);
+        }
+        poller.interrupt();
+        report(statsBefore, getRefreshStats());
+    }
+
+    private void send(String body) {
+        String key = getKey(body);
+        try {
+            HttpURLConnection connection = open("gerrit-builder-webhook/");
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            if (key != null) {
+                sent.putIfAbsent(key, System.currentTimeMillis());
+                if (gerrit != null) {
+                    gerrit.publish(Integer.parseInt(key.substring(0, key.indexOf('-'))));
+                }
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            count(Integer.toString(connection.getResponseCode()));
+            connection.disconnect();
+        } catch (IOException e) {
+            count(e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * @return "change-patchset" of a patchset-created event, or null
+     */
+    private static String getKey(String body) {
+        JsonObject event = gson.fromJson(body, JsonObject.class);
+        if (!"patchset-created".equals(event.get("type").getAsString()) || !event.has("change")
+                || !event.has("patchSet")) {
+            return null;
+        }
+        return event.getAsJsonObject("change").get("number").getAsInt() + "-"
+                + event.getAsJsonObject("patchSet").get("number").getAsInt();
+    }
+
+    private void count(String response) {
+        responses.computeIfAbsent(response, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Record when each change first shows up in a submit group with builds.
+     */
+    private void poll() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                JsonObject status = gson.fromJson(get("gerrit-builder/api/json"), JsonObject.class);
+                long now = System.currentTimeMillis();
+                JsonArray groups = status.getAsJsonArray("submitGroups");
+                for (JsonElement element : groups) {
+                    JsonObject group = element.getAsJsonObject();
+                    if (group.getAsJsonArray("triggeredBuilds").size() == 0
+                            && group.getAsJsonArray("startedBuilds").size() == 0) {
+                        continue;
+                    }
+                    for (JsonElement change : group.getAsJsonArray("changes")) {
+                        queued.putIfAbsent(change.getAsString(), now);
+                    }
+                }
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not poll status: " + e);
+            }
+        }
+    }
+
+    private Map<String, Long> getRefreshStats() throws IOException {
+        JsonObject refresh = gson.fromJson(get("gerrit-builder/stats"), JsonObject.class)
+                .getAsJsonObject("refresh");
+        Map<String, Long> stats = new TreeMap<String, Long>();
+        for (Map.Entry<String, JsonElement> entry : refresh.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return stats;
+    }
+
+    private void report(Map<String, Long> before, Map<String, Long> after) {
+        long received = after.get("webhooksReceived") - before.get("webhooksReceived");
+        long dropped = after.get("webhooksDropped") - before.get("webhooksDropped");
+        long requested = after.get("refreshesRequested") - before.get("refreshesRequested");
+        long run = after.get("refreshesRun") - before.get("refreshesRun");
+        System.out.println("Webhooks received " + received + ", accepted " + (received - dropped) + ", dropped "
+                + dropped);
+        System.out.println("Refreshes requested " + requested + ", run " + run + ", coalesced "
+                + Math.max(0, requested - run - after.get("backlog")) + ", backlog " + after.get("backlog"));
+
+        List<Long> latencies = new ArrayList<Long>();
+        for (Map.Entry<String, Long> entry : sent.entrySet()) {
+            Long queuedAt = queued.get(entry.getKey());
+            if (queuedAt != null) {
+                latencies.add(queuedAt - entry.getValue());
+            }
+        }
+        Collections.sort(latencies);
+        System.out.println("Changes queued " + latencies.size() + " of " + sent.size());
+        if (!latencies.isEmpty()) {
+            System.out.println("Event to queued latency p50 " + percentile(latencies, 50) + " ms, p90 "
+                    + percentile(latencies, 90) + " ms, p99 " + percentile(latencies, 99) + " ms, max "
+                    + latencies.get(latencies.size() - 1) + " ms");
+        }
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(jenkins + path).openConnection();
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection connection = open(path);
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
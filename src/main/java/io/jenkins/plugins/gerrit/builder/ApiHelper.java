@@ -70,7 +70,9 @@ public class ApiHelper {
         GerritRestApiFactory gerritRestApiFactory = new GerritRestApiFactory();
         GerritApi gerritApi = gerritRestApiFactory.create(authData);
         try {
-            return new GerritChangeFetcher(gerritApi, logger);
+            GerritChangeFetcher fetcher = new GerritChangeFetcher(gerritApi, logger);
+            fetcher.setGitCredentials(url, credentials.getUsername(), credentials.getPassword().getPlainText());
+            return fetcher;
         } catch (IOException e) {
             log.info("Could not create remote gerrit api: {}", e);
         }
@@ -0,0 +1,126 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+
+/**
+ * Keeps a rolling estimate of how long a build of a Gerrit project and branch
+ * takes in a specific Jenkins job. The estimate is an exponentially weighted
+ * moving average of the completed builds.
+ *
+ * Predictions are compared with the actual durations so the accuracy of the
+ * model can be checked.
+ */
+public class BuildDurationEstimator {
+    public static final long UNKNOWN = -1;
+
+    // Weight of the latest sample in the moving average
+    private static final double ALPHA = 0.3;
+    private static final int MAX_RECENT_SAMPLES = 100;
+
+    private final Map<String, Estimate> estimates = new HashMap<String, Estimate>();
+    private final Deque<Sample> recentSamples = new ArrayDeque<Sample>();
+    private long predictedBuilds;
+    private long totalAbsoluteError;
+
+    private static class Estimate {
+        double duration;
+        long samples;
+    }
+
+    private static class Sample {
+        final String key;
+        final long predicted;
+        final long actual;
+
+        Sample(String key, long predicted, long actual) {
+            this.key = key;
+            this.predicted = predicted;
+            this.actual = actual;
+        }
+    }
+
+    private static String key(String jobName, Build build) {
+        return jobName + "/" + build.project + "/" + build.branch;
+    }
+
+    /**
+     * @param jobName  Full name of the Jenkins job
+     * @param build    The build
+     * @param fallback Duration to use if there is no history yet, e.g. the
+     *                 estimate Jenkins has for the job
+     * @return Predicted duration in milliseconds or {@link #UNKNOWN}
+     */
+    public synchronized long predict(String jobName, Build build, long fallback) {
+        Estimate estimate = estimates.get(key(jobName, build));
+        if (estimate != null) {
+            return Math.round(estimate.duration);
+        }
+        return fallback >= 0 ? fallback : UNKNOWN;
+    }
+
+    /**
+     * Record the duration of a completed build.
+     *
+     * @param predicted The duration predicted when the build was triggered, or
+     *                  {@link #UNKNOWN}
+     * @param actual    The actual duration in milliseconds
+     */
+    public synchronized void record(String jobName, Build build, long predicted, long actual) {
+        String key = key(jobName, build);
+        Estimate estimate = estimates.get(key);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.duration = actual;
+            estimates.put(key, estimate);
+        } else {
+            estimate.duration = ALPHA * actual + (1 - ALPHA) * estimate.duration;
+        }
+        estimate.samples++;
+
+        if (predicted != UNKNOWN) {
+            predictedBuilds++;
+            totalAbsoluteError += Math.abs(actual - predicted);
+        }
+        recentSamples.addFirst(new Sample(key, predicted, actual));
+        if (recentSamples.size() > MAX_RECENT_SAMPLES) {
+            recentSamples.removeLast();
+        }
+    }
+
+    /**
+     * @return The estimates and the prediction accuracy, suitable for JSON
+     *         serialization
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        Map<String, Object> estimateStats = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+            Map<String, Object> estimate = new LinkedHashMap<String, Object>();
+            estimate.put("estimatedMillis", Math.round(entry.getValue().duration));
+            estimate.put("samples", entry.getValue().samples);
+            estimateStats.put(entry.getKey(), estimate);
+        }
+        stats.put("estimates", estimateStats);
+        stats.put("predictedBuilds", predictedBuilds);
+        stats.put("meanAbsoluteErrorMillis", predictedBuilds > 0 ? totalAbsoluteError / predictedBuilds : 0);
+
+        List<Map<String, Object>> samples = new ArrayList<Map<String, Object>>();
+        for (Sample sample : recentSamples) {
+            Map<String, Object> s = new LinkedHashMap<String, Object>();
+            s.put("key", sample.key);
+            s.put("predictedMillis", sample.predicted);
+            s.put("actualMillis", sample.actual);
+            samples.add(s);
+        }
+        stats.put("recent", samples);
+        return stats;
+    }
+}
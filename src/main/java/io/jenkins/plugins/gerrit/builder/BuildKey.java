@@ -0,0 +1,40 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+
+/**
+ * A build of a Gerrit project and branch in a specific Jenkins job. Several
+ * Jenkins jobs can build the same Gerrit project, e.g. compile, unit and
+ * integration tests in parallel.
+ */
+public class BuildKey {
+    public final Build build;
+    public final String jobName;
+
+    /**
+     * @param build   The build
+     * @param jobName Full name of the Jenkins job
+     */
+    public BuildKey(Build build, String jobName) {
+        this.build = build;
+        this.jobName = jobName;
+    }
+
+    @Override
+    public String toString() {
+        return jobName + ":" + build;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof BuildKey) || (o == null)) {
+            return false;
+        }
+        return toString().equals(o.toString());
+    }
+}
@@ -0,0 +1,183 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+import io.jenkins.plugins.gerrit.builder.fetcher.FetchStrategy;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+import jenkins.model.Jenkins;
+
+/**
+ * Limits the number of Gerrit builds in flight, in total and per Gerrit
+ * project, and pauses triggering when the Jenkins queue is too long. Submit
+ * groups that do not fit are deferred and released in priority order when
+ * capacity frees up.
+ */
+public class BuildThrottle {
+    private static final Logger log = LoggerFactory.getLogger(BuildThrottle.class);
+
+    static class DeferredSubmitGroup {
+        final SubmitGroup submitGroup;
+        final Set<Build> builds;
+        final int priority;
+        final FetchStrategy fetchStrategy;
+        final long since;
+
+        DeferredSubmitGroup(SubmitGroup submitGroup, Set<Build> builds, int priority, FetchStrategy fetchStrategy,
+                long since) {
+            this.submitGroup = submitGroup;
+            this.builds = builds;
+            this.priority = priority;
+            this.fetchStrategy = fetchStrategy;
+            this.since = since;
+        }
+    }
+
+    private final Map<SubmitGroup, DeferredSubmitGroup> deferredGroups =
+            new HashMap<SubmitGroup, DeferredSubmitGroup>();
+    private long releasedGroups;
+    private long totalDeferredMillis;
+    private long maxDeferredMillis;
+
+    /**
+     * Check if all builds for a submit group that are not already in flight can
+     * be triggered. If the Jenkins queue is not too long and nothing at all is in
+     * flight the group is always allowed, so that a group larger than the limits
+     * can still be built.
+     *
+     * Must be called with a lock held on the submit group statuses.
+     *
+     * @param buildKeys The builds of the submit group in each matching Jenkins job
+     */
+    boolean hasCapacity(Configuration config, Map<SubmitGroup, SubmitGroupBuildStatus> submitGroupStatuses,
+            SubmitGroup submitGroup, Collection<BuildKey> buildKeys) {
+        int maxTotal = config.getMaxConcurrentBuilds();
+        int maxPerProject = config.getMaxConcurrentBuildsPerProject();
+        int maxQueueLength = config.getMaxQueueLength();
+
+        // A long queue also holds back groups when no Gerrit build is in flight,
+        // it may be full of other builds
+        if (maxQueueLength > 0) {
+            int queueLength = Jenkins.get().getQueue().getApproximateItemsQuickly().size();
+            if (queueLength >= maxQueueLength) {
+                log.info("Jenkins queue length {} reached the limit {}", queueLength, maxQueueLength);
+                return false;
+            }
+        }
+
+        int inFlight = 0;
+        Map<String, Integer> inFlightPerProject = new HashMap<String, Integer>();
+        for (SubmitGroupBuildStatus status : submitGroupStatuses.values()) {
+            for (BuildKey buildKey : status.getPendingBuilds()) {
+                inFlight++;
+                increment(inFlightPerProject, buildKey.build.project);
+            }
+        }
+        if (inFlight == 0) {
+            return true;
+        }
+
+        SubmitGroupBuildStatus status = submitGroupStatuses.get(submitGroup);
+        int newBuilds = 0;
+        Map<String, Integer> newPerProject = new HashMap<String, Integer>();
+        for (BuildKey buildKey : buildKeys) {
+            if (status == null || !status.containsBuild(buildKey)) {
+                newBuilds++;
+                increment(newPerProject, buildKey.build.project);
+            }
+        }
+        if (maxTotal > 0 && inFlight + newBuilds > maxTotal) {
+            log.info("{} Gerrit builds in flight, limit is {}", inFlight, maxTotal);
+            return false;
+        }
+        if (maxPerProject > 0) {
+            for (Map.Entry<String, Integer> entry : newPerProject.entrySet()) {
+                Integer current = inFlightPerProject.get(entry.getKey());
+                int projectInFlight = current != null ? current : 0;
+                if (projectInFlight + entry.getValue() > maxPerProject) {
+                    log.info("{} Gerrit builds in flight for project {}, limit is {}", projectInFlight,
+                            entry.getKey(), maxPerProject);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count != null ? count + 1 : 1);
+    }
+
+    synchronized void defer(SubmitGroup submitGroup, Set<Build> builds, int priority, FetchStrategy fetchStrategy) {
+        DeferredSubmitGroup previous = deferredGroups.get(submitGroup);
+        long since = previous != null ? previous.since : System.currentTimeMillis();
+        deferredGroups.put(submitGroup, new DeferredSubmitGroup(submitGroup, builds, priority, fetchStrategy, since));
+        log.info("Deferring submit group {} with priority {}", submitGroup, priority);
+    }
+
+    /**
+     * Stop deferring a submit group since it has been triggered.
+     */
+    synchronized void released(SubmitGroup submitGroup) {
+        DeferredSubmitGroup deferred = deferredGroups.remove(submitGroup);
+        if (deferred != null) {
+            long deferredMillis = System.currentTimeMillis() - deferred.since;
+            releasedGroups++;
+            totalDeferredMillis += deferredMillis;
+            maxDeferredMillis = Math.max(maxDeferredMillis, deferredMillis);
+            log.info("Released submit group {} after {} ms", submitGroup, deferredMillis);
+        }
+    }
+
+    /**
+     * Forget deferred submit groups that are no longer open, e.g. merged,
+     * abandoned or replaced by a new patch set.
+     */
+    synchronized void retain(Set<SubmitGroup> openSubmitGroups) {
+        deferredGroups.keySet().retainAll(openSubmitGroups);
+    }
+
+    /**
+     * @return The deferred submit groups, highest priority first
+     */
+    synchronized List<DeferredSubmitGroup> getDeferred() {
+        List<DeferredSubmitGroup> deferred = new ArrayList<DeferredSubmitGroup>(deferredGroups.values());
+        Collections.sort(deferred, new Comparator<DeferredSubmitGroup>() {
+            @Override
+            public int compare(DeferredSubmitGroup a, DeferredSubmitGroup b) {
+                int result = Integer.compare(b.priority, a.priority);
+                if (result == 0) {
+                    result = Long.compare(a.since, b.since);
+                }
+                return result;
+            }
+        });
+        return deferred;
+    }
+
+    synchronized int getDeferredCount() {
+        return deferredGroups.size();
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("deferredGroups", deferredGroups.size());
+        stats.put("releasedGroups", releasedGroups);
+        stats.put("totalDeferredMillis", totalDeferredMillis);
+        stats.put("maxDeferredMillis", maxDeferredMillis);
+        stats.put("meanDeferredMillis", releasedGroups > 0 ? totalDeferredMillis / releasedGroups : 0);
+        return stats;
+    }
+}
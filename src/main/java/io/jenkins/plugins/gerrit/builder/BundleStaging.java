@@ -0,0 +1,209 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.restapi.RestApiException;
+
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.jenkins.plugins.gerrit.builder.fetcher.BundleCache;
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChangeFetcher;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+import jenkins.model.Jenkins;
+
+/**
+ * Downloads submit preview bundles on the controller as soon as the builds for
+ * a submit group are queued, so that the download does not occupy an executor.
+ * The checkout then copies the staged bundle to the agent instead of
+ * downloading it from Gerrit.
+ */
+public class BundleStaging {
+    private static final Logger log = LoggerFactory.getLogger(BundleStaging.class);
+    private static final int THREADS = 2;
+    // Max time a checkout waits for a bundle still being downloaded
+    private static final long MAX_WAIT_MINUTES = 10;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "GerritBuilderBundleStaging"));
+    private final Map<String, StagedBundle> stagedBundles = new ConcurrentHashMap<String, StagedBundle>();
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong savedExecutorMillis = new AtomicLong();
+    private final AtomicLong copyMillis = new AtomicLong();
+
+    private static class StagedBundle {
+        final File file;
+        volatile Future<File> future;
+        volatile long downloadMillis;
+
+        StagedBundle(File file) {
+            this.file = file;
+        }
+    }
+
+    private File getStagingDir() {
+        return new File(Jenkins.get().getRootDir(), "gerrit-builder/staging");
+    }
+
+    public static String getKey(SubmitGroup submitGroup) {
+        return BundleCache.key(submitGroup.first()._number, submitGroup.first().patchset, submitGroup.toString());
+    }
+
+    /**
+     * Start downloading the bundle for a submit group in the background, unless
+     * it is already staged.
+     */
+    public void prefetch(final SubmitGroup submitGroup) {
+        final String key = getKey(submitGroup);
+        final StagedBundle staged = new StagedBundle(new File(getStagingDir(), BundleCache.getFileName(key)));
+        if (stagedBundles.putIfAbsent(key, staged) != null) {
+            return;
+        }
+        staged.future = executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException, RestApiException {
+                long start = System.currentTimeMillis();
+                PluginImpl plugin = PluginImpl.getInstance();
+                GerritChangeFetcher fetcher = plugin != null ? plugin.getFetcher() : null;
+                if (fetcher == null) {
+                    throw new IOException("No Gerrit connection configured");
+                }
+                Files.createDirectories(staged.file.getParentFile().toPath());
+                File tmp = File.createTempFile(staged.file.getName(), ".tmp", staged.file.getParentFile());
+                try {
+                    fetcher.downloadBundle(submitGroup.first()._number, submitGroup.first().patchset, tmp);
+                    Files.move(tmp.toPath(), staged.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    tmp.delete();
+                    fetcher.close();
+                }
+                staged.downloadMillis = System.currentTimeMillis() - start;
+                prefetched.incrementAndGet();
+                log.info("Staged bundle {} in {} ms", key, staged.downloadMillis);
+                return staged.file;
+            }
+        });
+    }
+
+    /**
+     * Copy the staged bundle of a submit group, e.g. to the agent running the
+     * build, waiting for the download to complete if needed.
+     *
+     * The executor time saved is the download time minus the time waited for
+     * the download and the time spent copying.
+     *
+     * @param dir Directory to create the copy in
+     * @return The copy, or null if no bundle could be staged
+     */
+    public FilePath copyTo(SubmitGroup submitGroup, FilePath dir) throws IOException, InterruptedException {
+        String key = getKey(submitGroup);
+        StagedBundle staged = stagedBundles.get(key);
+        if (staged == null || staged.future == null) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        File file;
+        try {
+            file = staged.future.get(MAX_WAIT_MINUTES, TimeUnit.MINUTES);
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            log.warn("Could not stage bundle {}: {}", key, e.toString());
+            failed.incrementAndGet();
+            stagedBundles.remove(key);
+            return null;
+        }
+        long waited = System.currentTimeMillis() - start;
+        if (!file.exists()) {
+            return null;
+        }
+
+        start = System.currentTimeMillis();
+        dir.mkdirs();
+        FilePath copy = dir.createTempFile("gerrit-bundle", ".zip");
+        new FilePath(file).copyTo(copy);
+        long copied = System.currentTimeMillis() - start;
+
+        long saved = Math.max(0, staged.downloadMillis - waited - copied);
+        used.incrementAndGet();
+        savedExecutorMillis.addAndGet(saved);
+        copyMillis.addAndGet(copied);
+        log.info("Using staged bundle {}, copied in {} ms, saved {} ms of executor time", key, copied, saved);
+        return copy;
+    }
+
+    /**
+     * Remove the staged bundle of a submit group that has completed.
+     */
+    public void remove(SubmitGroup submitGroup) {
+        StagedBundle staged = stagedBundles.remove(getKey(submitGroup));
+        if (staged != null) {
+            delete(staged);
+        }
+    }
+
+    /**
+     * Remove staged bundles of all submit groups not in the given set.
+     */
+    public void retain(Set<SubmitGroup> submitGroups) {
+        Set<String> keys = new HashSet<String>();
+        for (SubmitGroup submitGroup : submitGroups) {
+            keys.add(getKey(submitGroup));
+        }
+        Iterator<Map.Entry<String, StagedBundle>> it = stagedBundles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, StagedBundle> entry = it.next();
+            if (!keys.contains(entry.getKey())) {
+                it.remove();
+                delete(entry.getValue());
+            }
+        }
+    }
+
+    private void delete(StagedBundle staged) {
+        if (staged.future != null && !staged.future.isDone()) {
+            staged.future.cancel(true);
+        }
+        staged.file.delete();
+    }
+
+    /**
+     * Stop the downloads, e.g. when the plugin is stopped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("stagedBundles", stagedBundles.size());
+        stats.put("prefetched", prefetched.get());
+        stats.put("used", used.get());
+        stats.put("failed", failed.get());
+        stats.put("savedExecutorMillis", savedExecutorMillis.get());
+        stats.put("copyMillis", copyMillis.get());
+        return stats;
+    }
+}
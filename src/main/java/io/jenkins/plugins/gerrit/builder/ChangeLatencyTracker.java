@@ -0,0 +1,264 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChange;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+
+/**
+ * Tracks each change and patch set from upload to the final Verified vote.
+ *
+ * The time of each {@link Stage} is recorded the first time it is reached.
+ * When the vote is published the time spent in each stage and the end to end
+ * time are kept in a rolling window, from which percentiles are calculated.
+ * Changes that are merged, abandoned or get a new patch set before they are
+ * voted on are dropped.
+ */
+public class ChangeLatencyTracker {
+    private static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final int MAX_SAMPLES = 10000;
+    private static final int MAX_SLOWEST = 20;
+    private static final double[] PERCENTILES = { 50, 90, 99 };
+
+    public enum Stage {
+        // The patchset-created webhook was received
+        RECEIVED,
+        // The change was found in a submit group by a refresh
+        GROUPED,
+        // The builds required by the submit group were determined
+        PREVIEWED,
+        // The first build was put in the Jenkins queue
+        QUEUED,
+        // The first build was started
+        STARTED,
+        // All builds were completed
+        COMPLETED,
+        // The Verified vote was published
+        VOTED
+    }
+
+    private static class Latency {
+        final String change;
+        // Upload time of the patch set, 0 if not known yet
+        long uploaded;
+        final Map<Stage, Long> stages = new EnumMap<Stage, Long>(Stage.class);
+
+        Latency(String change) {
+            this.change = change;
+        }
+
+        long getStart() {
+            if (uploaded > 0) {
+                return uploaded;
+            }
+            return stages.isEmpty() ? 0 : Collections.min(stages.values());
+        }
+
+        /**
+         * @return Time spent in each reached stage, measured from the previous
+         *         reached stage or the upload
+         */
+        Map<Stage, Long> getStageMillis() {
+            Map<Stage, Long> result = new EnumMap<Stage, Long>(Stage.class);
+            long previous = getStart();
+            for (Map.Entry<Stage, Long> entry : stages.entrySet()) {
+                result.put(entry.getKey(), Math.max(0, entry.getValue() - previous));
+                previous = entry.getValue();
+            }
+            return result;
+        }
+    }
+
+    private static class Sample {
+        final long completed;
+        final long totalMillis;
+        final Map<Stage, Long> stageMillis;
+
+        Sample(long completed, long totalMillis, Map<Stage, Long> stageMillis) {
+            this.completed = completed;
+            this.totalMillis = totalMillis;
+            this.stageMillis = stageMillis;
+        }
+    }
+
+    private final Map<String, Latency> inFlight = new LinkedHashMap<String, Latency>();
+    private final Deque<Sample> samples = new ArrayDeque<Sample>();
+    private long voted;
+    private long dropped;
+
+    private static String key(int change, int patchset) {
+        return change + "-" + patchset;
+    }
+
+    private Latency get(int change, int patchset) {
+        String key = key(change, patchset);
+        Latency latency = inFlight.get(key);
+        if (latency == null) {
+            latency = new Latency(key);
+            inFlight.put(key, latency);
+        }
+        return latency;
+    }
+
+    /**
+     * A patchset-created webhook was received.
+     *
+     * @param uploaded Creation time of the patch set, 0 if not known
+     */
+    public synchronized void received(int change, int patchset, long uploaded) {
+        Latency latency = get(change, patchset);
+        if (uploaded > 0 && latency.uploaded == 0) {
+            latency.uploaded = uploaded;
+        }
+        record(latency, Stage.RECEIVED, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a stage for all changes of a submit group, unless already reached.
+     */
+    public synchronized void reached(SubmitGroup submitGroup, Stage stage) {
+        long now = System.currentTimeMillis();
+        for (GerritChange change : submitGroup) {
+            Latency latency = get(change._number, change.patchset);
+            if (latency.uploaded == 0) {
+                latency.uploaded = change.uploaded;
+            }
+            record(latency, stage, now);
+            if (stage == Stage.VOTED) {
+                inFlight.remove(latency.change);
+                addSample(latency, now);
+            }
+        }
+    }
+
+    private static void record(Latency latency, Stage stage, long time) {
+        if (!latency.stages.containsKey(stage)) {
+            latency.stages.put(stage, time);
+        }
+    }
+
+    private void addSample(Latency latency, long now) {
+        voted++;
+        samples.addLast(new Sample(now, Math.max(0, now - latency.getStart()), latency.getStageMillis()));
+        expire(now);
+    }
+
+    private void expire(long now) {
+        while (!samples.isEmpty()
+                && (samples.size() > MAX_SAMPLES || now - samples.peekFirst().completed > WINDOW_MILLIS)) {
+            samples.removeFirst();
+        }
+    }
+
+    /**
+     * Stop tracking changes that are no longer open, or got a new patch set.
+     */
+    public synchronized void retain(Set<GerritChange> openChanges) {
+        Set<String> keys = new HashSet<String>();
+        for (GerritChange change : openChanges) {
+            keys.add(key(change._number, change.patchset));
+        }
+        Iterator<String> it = inFlight.keySet().iterator();
+        while (it.hasNext()) {
+            if (!keys.contains(it.next())) {
+                it.remove();
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * @return Percentiles of the time spent in each stage and end to end in the
+     *         rolling window, and the slowest changes still in flight
+     */
+    public synchronized Map<String, Object> getStats() {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("windowHours", TimeUnit.MILLISECONDS.toHours(WINDOW_MILLIS));
+        stats.put("samples", samples.size());
+        stats.put("voted", voted);
+        stats.put("dropped", dropped);
+
+        List<Long> totals = new ArrayList<Long>();
+        Map<Stage, List<Long>> stageValues = new EnumMap<Stage, List<Long>>(Stage.class);
+        for (Sample sample : samples) {
+            totals.add(sample.totalMillis);
+            for (Map.Entry<Stage, Long> entry : sample.stageMillis.entrySet()) {
+                List<Long> values = stageValues.get(entry.getKey());
+                if (values == null) {
+                    values = new ArrayList<Long>();
+                    stageValues.put(entry.getKey(), values);
+                }
+                values.add(entry.getValue());
+            }
+        }
+        stats.put("endToEnd", percentiles(totals));
+        Map<String, Object> stageStats = new LinkedHashMap<String, Object>();
+        for (Map.Entry<Stage, List<Long>> entry : stageValues.entrySet()) {
+            stageStats.put(entry.getKey().name(), percentiles(entry.getValue()));
+        }
+        stats.put("stages", stageStats);
+
+        List<Latency> slowest = new ArrayList<Latency>(inFlight.values());
+        Collections.sort(slowest, new Comparator<Latency>() {
+            @Override
+            public int compare(Latency a, Latency b) {
+                return Long.compare(a.getStart(), b.getStart());
+            }
+        });
+        stats.put("inFlight", inFlight.size());
+        List<Map<String, Object>> slowestStats = new ArrayList<Map<String, Object>>();
+        for (Latency latency : slowest.subList(0, Math.min(MAX_SLOWEST, slowest.size()))) {
+            Map<String, Object> s = new LinkedHashMap<String, Object>();
+            s.put("change", latency.change);
+            s.put("ageMillis", now - latency.getStart());
+            s.put("stage", latency.stages.isEmpty() ? null
+                    : new ArrayList<Stage>(latency.stages.keySet()).get(latency.stages.size() - 1).name());
+            Map<String, Object> stageMillis = new LinkedHashMap<String, Object>();
+            for (Map.Entry<Stage, Long> entry : latency.getStageMillis().entrySet()) {
+                stageMillis.put(entry.getKey().name(), entry.getValue());
+            }
+            s.put("stageMillis", stageMillis);
+            slowestStats.add(s);
+        }
+        stats.put("slowestInFlight", slowestStats);
+        return stats;
+    }
+
+    /**
+     * Nearest rank percentiles.
+     */
+    private static Map<String, Object> percentiles(List<Long> values) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        result.put("count", sorted.length);
+        for (double percentile : PERCENTILES) {
+            long value = 0;
+            if (sorted.length > 0) {
+                int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+                value = sorted[Math.max(0, rank - 1)];
+            }
+            result.put("p" + (int) percentile + "Millis", value);
+        }
+        result.put("maxMillis", sorted.length > 0 ? sorted[sorted.length - 1] : 0);
+        return result;
+    }
+}
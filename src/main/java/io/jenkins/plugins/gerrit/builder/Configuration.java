@@ -37,6 +37,19 @@ public class Configuration extends GlobalConfiguration {
     private String credentialsId;
     private String gerritServerUrl;
     private boolean insecureHttps;
+    private int maxConcurrentBuilds;
+    private int maxConcurrentBuildsPerProject;
+    private int maxQueueLength;
+    private int statusTtlMinutes = 24 * 60;
+    private int maxTrackedGroups = 1000;
+    private int agentBundleCacheMb = 1024;
+    private boolean sparseSubmoduleUpdate;
+    private int submoduleApplyThreads;
+    private boolean useGitMirror;
+    private boolean agentSharedObjectStore;
+    private int openChangesMaxAgeDays = 7;
+    private int openChangesPageSize = 100;
+    private int maxOpenChanges = 5000;
 
     public boolean getInsecureHttps() {
         return insecureHttps;
@@ -70,6 +83,192 @@ public class Configuration extends GlobalConfiguration {
         return credentialsId;
     }
 
+    /**
+     * @return Max number of Gerrit builds triggered or running at the same time,
+     *         0 means no limit
+     */
+    public int getMaxConcurrentBuilds() {
+        return maxConcurrentBuilds;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentBuilds(int maxConcurrentBuilds) {
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
+        save();
+        PluginImpl.getInstance().configChanged();
+    }
+
+    /**
+     * @return Max number of Gerrit builds triggered or running at the same time
+     *         for a single Gerrit project, 0 means no limit
+     */
+    public int getMaxConcurrentBuildsPerProject() {
+        return maxConcurrentBuildsPerProject;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentBuildsPerProject(int maxConcurrentBuildsPerProject) {
+        this.maxConcurrentBuildsPerProject = maxConcurrentBuildsPerProject;
+        save();
+        PluginImpl.getInstance().configChanged();
+    }
+
+    /**
+     * @return Jenkins queue length at which no more Gerrit builds are triggered,
+     *         0 means no limit
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    @DataBoundSetter
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+        save();
+        PluginImpl.getInstance().configChanged();
+    }
+
+    /**
+     * @return Minutes without any build state change after which a submit group
+     *         is no longer tracked, 0 means never
+     */
+    public int getStatusTtlMinutes() {
+        return statusTtlMinutes;
+    }
+
+    @DataBoundSetter
+    public void setStatusTtlMinutes(int statusTtlMinutes) {
+        this.statusTtlMinutes = statusTtlMinutes;
+        save();
+    }
+
+    /**
+     * @return Max number of submit groups with ongoing builds to keep track of, 0
+     *         means no limit
+     */
+    public int getMaxTrackedGroups() {
+        return maxTrackedGroups;
+    }
+
+    @DataBoundSetter
+    public void setMaxTrackedGroups(int maxTrackedGroups) {
+        this.maxTrackedGroups = maxTrackedGroups;
+        save();
+    }
+
+    /**
+     * @return Max size in MB of the submit preview bundle cache on each agent, 0
+     *         disables the cache
+     */
+    public int getAgentBundleCacheMb() {
+        return agentBundleCacheMb;
+    }
+
+    @DataBoundSetter
+    public void setAgentBundleCacheMb(int agentBundleCacheMb) {
+        this.agentBundleCacheMb = agentBundleCacheMb;
+        save();
+    }
+
+    /**
+     * @return true if only submodules that are part of the change bundle, or whose
+     *         gitlink moved, should be touched when applying changes
+     */
+    public boolean getSparseSubmoduleUpdate() {
+        return sparseSubmoduleUpdate;
+    }
+
+    @DataBoundSetter
+    public void setSparseSubmoduleUpdate(boolean sparseSubmoduleUpdate) {
+        this.sparseSubmoduleUpdate = sparseSubmoduleUpdate;
+        save();
+    }
+
+    /**
+     * @return Max number of submodules applied in parallel on an agent, 0 or 1
+     *         applies them one at a time
+     */
+    public int getSubmoduleApplyThreads() {
+        return submoduleApplyThreads;
+    }
+
+    @DataBoundSetter
+    public void setSubmoduleApplyThreads(int submoduleApplyThreads) {
+        this.submoduleApplyThreads = submoduleApplyThreads;
+        save();
+    }
+
+    /**
+     * @return true if the builds required by a submit group should be found using
+     *         a git mirror on the controller instead of the submit preview
+     */
+    public boolean getUseGitMirror() {
+        return useGitMirror;
+    }
+
+    @DataBoundSetter
+    public void setUseGitMirror(boolean useGitMirror) {
+        this.useGitMirror = useGitMirror;
+        save();
+        PluginImpl.getInstance().configChanged();
+    }
+
+    /**
+     * @return true if the objects of applied bundles should be stored once on each
+     *         agent and shared by all workspaces as alternates
+     */
+    public boolean getAgentSharedObjectStore() {
+        return agentSharedObjectStore;
+    }
+
+    @DataBoundSetter
+    public void setAgentSharedObjectStore(boolean agentSharedObjectStore) {
+        this.agentSharedObjectStore = agentSharedObjectStore;
+        save();
+    }
+
+    /**
+     * @return Only open changes updated within this many days are built, 0 means
+     *         no limit
+     */
+    public int getOpenChangesMaxAgeDays() {
+        return openChangesMaxAgeDays;
+    }
+
+    @DataBoundSetter
+    public void setOpenChangesMaxAgeDays(int openChangesMaxAgeDays) {
+        this.openChangesMaxAgeDays = openChangesMaxAgeDays;
+        save();
+    }
+
+    /**
+     * @return Number of open changes fetched from Gerrit per request, 0 uses the
+     *         query limit of the Gerrit user
+     */
+    public int getOpenChangesPageSize() {
+        return openChangesPageSize;
+    }
+
+    @DataBoundSetter
+    public void setOpenChangesPageSize(int openChangesPageSize) {
+        this.openChangesPageSize = openChangesPageSize;
+        save();
+    }
+
+    /**
+     * @return Max number of open changes fetched per refresh, the most recently
+     *         updated first, 0 means no limit
+     */
+    public int getMaxOpenChanges() {
+        return maxOpenChanges;
+    }
+
+    @DataBoundSetter
+    public void setMaxOpenChanges(int maxOpenChanges) {
+        this.maxOpenChanges = maxOpenChanges;
+        save();
+    }
+
     public FormValidation doCheckGerritServerUrl(@QueryParameter String value) {
         boolean ok = true;
         if (StringUtils.isEmpty(value)) {
@@ -0,0 +1,54 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.FetchStrategy;
+
+/**
+ * Time spent applying changes in the workspace, per {@link FetchStrategy}.
+ */
+public class FetchStrategyStats {
+    private static class Timing {
+        long count;
+        long totalMillis;
+        long maxMillis;
+    }
+
+    private final Map<FetchStrategy, Timing> timings = new EnumMap<FetchStrategy, Timing>(FetchStrategy.class);
+    private long fallbacks;
+
+    /**
+     * @param requested The strategy selected when the build was triggered
+     * @param used      The strategy that was actually used, differs if the agent
+     *                  had to fall back to the submit preview
+     */
+    public synchronized void record(FetchStrategy requested, FetchStrategy used, long millis) {
+        Timing timing = timings.get(used);
+        if (timing == null) {
+            timing = new Timing();
+            timings.put(used, timing);
+        }
+        timing.count++;
+        timing.totalMillis += millis;
+        timing.maxMillis = Math.max(timing.maxMillis, millis);
+        if (requested != used) {
+            fallbacks++;
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        for (Map.Entry<FetchStrategy, Timing> entry : timings.entrySet()) {
+            Timing timing = entry.getValue();
+            Map<String, Object> strategy = new LinkedHashMap<String, Object>();
+            strategy.put("count", timing.count);
+            strategy.put("meanMillis", timing.totalMillis / timing.count);
+            strategy.put("maxMillis", timing.maxMillis);
+            stats.put(entry.getKey().name(), strategy);
+        }
+        stats.put("fallbacks", fallbacks);
+        return stats;
+    }
+}
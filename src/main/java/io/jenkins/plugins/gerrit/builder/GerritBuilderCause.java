@@ -2,16 +2,24 @@ package io.jenkins.plugins.gerrit.builder;
 
 import hudson.triggers.SCMTrigger.SCMTriggerCause;
 import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+import io.jenkins.plugins.gerrit.builder.fetcher.FetchStrategy;
 import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
 
 public class GerritBuilderCause extends SCMTriggerCause {
     private SubmitGroup submitGroup;
     private Build build;
+    private int priority;
+    private long predictedDuration = BuildDurationEstimator.UNKNOWN;
+    private FetchStrategy fetchStrategy;
 
-    public GerritBuilderCause(SubmitGroup submitGroup, Build build) {
+    public GerritBuilderCause(SubmitGroup submitGroup, Build build, int priority, long predictedDuration,
+            FetchStrategy fetchStrategy) {
         super("");
         this.submitGroup = submitGroup;
         this.build = build;
+        this.priority = priority;
+        this.predictedDuration = predictedDuration;
+        this.fetchStrategy = fetchStrategy;
     }
 
     public SubmitGroup getSubmitGroup() {
@@ -22,4 +30,28 @@ public class GerritBuilderCause extends SCMTriggerCause {
         return build;
     }
 
+    /**
+     * @return The priority of the submit group when the build was triggered, see
+     *         {@link SubmitGroupPriority}
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return The predicted duration in milliseconds when the build was
+     *         triggered, or {@link BuildDurationEstimator#UNKNOWN}
+     */
+    public long getPredictedDuration() {
+        return predictedDuration;
+    }
+
+    /**
+     * @return How the agent should fetch the changes of the submit group
+     */
+    public FetchStrategy getFetchStrategy() {
+        // Not set for builds triggered by older versions
+        return fetchStrategy != null ? fetchStrategy : FetchStrategy.SUBMIT_PREVIEW;
+    }
+
 }
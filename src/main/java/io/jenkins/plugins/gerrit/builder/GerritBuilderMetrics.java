@@ -0,0 +1,118 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import io.jenkins.plugins.gerrit.builder.fetcher.FetcherListener;
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChangeFetcher;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Metrics for the refresh, trigger and vote pipeline, available through the
+ * Jenkins metrics API under "gerrit-builder".
+ */
+@Extension
+public class GerritBuilderMetrics extends MetricProvider implements FetcherListener {
+    private static final String PREFIX = "gerrit-builder";
+    private static final String[] ENDPOINTS = { GerritChangeFetcher.ENDPOINT_QUERY,
+            GerritChangeFetcher.ENDPOINT_SUBMITTED_TOGETHER, GerritChangeFetcher.ENDPOINT_SUBMIT_PREVIEW,
+            GerritChangeFetcher.ENDPOINT_REVIEW, GerritChangeFetcher.ENDPOINT_SUBMIT_TYPE };
+
+    final Timer fetchChanges = new Timer();
+    final Timer scheduleBuilds = new Timer();
+    final Histogram submitGroupsPerRefresh = new Histogram(new SlidingTimeWindowReservoir(1, TimeUnit.HOURS));
+    final Counter buildsTriggered = new Counter();
+    final Counter buildsDeduplicated = new Counter();
+    final Counter webhooksReceived = new Counter();
+    final Counter webhooksDropped = new Counter();
+    final Timer votePublish = new Timer();
+    private final Map<String, Timer> restCalls = new HashMap<String, Timer>();
+    private final Map<String, Counter> restFailures = new HashMap<String, Counter>();
+    private final MetricSet metricSet;
+
+    public GerritBuilderMetrics() {
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put(MetricRegistry.name(PREFIX, "refresh", "fetchChanges"), fetchChanges);
+        metrics.put(MetricRegistry.name(PREFIX, "refresh", "scheduleBuilds"), scheduleBuilds);
+        metrics.put(MetricRegistry.name(PREFIX, "refresh", "submitGroups"), submitGroupsPerRefresh);
+        metrics.put(MetricRegistry.name(PREFIX, "builds", "triggered"), buildsTriggered);
+        metrics.put(MetricRegistry.name(PREFIX, "builds", "deduplicated"), buildsDeduplicated);
+        metrics.put(MetricRegistry.name(PREFIX, "webhook", "received"), webhooksReceived);
+        metrics.put(MetricRegistry.name(PREFIX, "webhook", "dropped"), webhooksDropped);
+        metrics.put(MetricRegistry.name(PREFIX, "vote", "publish"), votePublish);
+        for (String endpoint : ENDPOINTS) {
+            Timer timer = new Timer();
+            Counter failures = new Counter();
+            restCalls.put(endpoint, timer);
+            restFailures.put(endpoint, failures);
+            metrics.put(MetricRegistry.name(PREFIX, "rest", endpoint), timer);
+            metrics.put(MetricRegistry.name(PREFIX, "rest", endpoint, "failures"), failures);
+        }
+        metrics.put(MetricRegistry.name(PREFIX, "submitGroupStatuses"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                PluginImpl plugin = PluginImpl.getInstance();
+                return plugin != null ? plugin.getTrackedGroupCount() : 0;
+            }
+        });
+        metrics.put(MetricRegistry.name(PREFIX, "queue", "backlog"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                PluginImpl plugin = PluginImpl.getInstance();
+                return plugin != null ? plugin.getQueueBacklog() : 0;
+            }
+        });
+        metricSet = new MetricSet() {
+            @Override
+            public Map<String, Metric> getMetrics() {
+                return metrics;
+            }
+        };
+    }
+
+    public static GerritBuilderMetrics get() {
+        return ExtensionList.lookupSingleton(GerritBuilderMetrics.class);
+    }
+
+    @Override
+    public MetricSet getMetricSet() {
+        return metricSet;
+    }
+
+    /**
+     * A webhook request was received.
+     */
+    public void webhookReceived() {
+        webhooksReceived.inc();
+    }
+
+    /**
+     * A webhook request was not acted upon, e.g. an event type we do not need.
+     */
+    public void webhookDropped() {
+        webhooksDropped.inc();
+    }
+
+    @Override
+    public void onRestCall(String endpoint, long durationNanos, boolean success) {
+        Timer timer = restCalls.get(endpoint);
+        if (timer != null) {
+            timer.update(durationNanos, TimeUnit.NANOSECONDS);
+            if (!success) {
+                restFailures.get(endpoint).inc();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+
+/**
+ * Exposes internal statistics and the status of the plugin as JSON under
+ * /gerrit-builder/
+ */
+@Extension
+public class GerritBuilderRootAction implements RootAction {
+    public static final String URLNAME = "gerrit-builder";
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Gerrit Builder";
+    }
+
+    @Override
+    public String getUrlName() {
+        return URLNAME;
+    }
+
+    /**
+     * The tracked submit groups and their builds, e.g. /gerrit-builder/api/json.
+     * Served from a snapshot, so polling does not block build events.
+     */
+    public Api getApi() {
+        PluginImpl plugin = PluginImpl.getInstance();
+        if (plugin == null) {
+            return null;
+        }
+        return new Api(plugin.getStatusSnapshot());
+    }
+
+    public void doStats(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        PluginImpl plugin = PluginImpl.getInstance();
+        if (plugin == null) {
+            rsp.sendError(503, "Gerrit Builder plugin not started");
+            return;
+        }
+        writeJson(rsp, plugin.getStats());
+    }
+
+    /**
+     * Latency percentiles from patch set upload to Verified vote, and the
+     * slowest changes not yet voted on.
+     */
+    public void doLatency(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        PluginImpl plugin = PluginImpl.getInstance();
+        if (plugin == null) {
+            rsp.sendError(503, "Gerrit Builder plugin not started");
+            return;
+        }
+        writeJson(rsp, plugin.getLatencyTracker().getStats());
+    }
+
+    /**
+     * The phases of the last refreshes of the open changes, the latest first.
+     */
+    public void doRefreshes(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        PluginImpl plugin = PluginImpl.getInstance();
+        if (plugin == null) {
+            rsp.sendError(503, "Gerrit Builder plugin not started");
+            return;
+        }
+        writeJson(rsp, plugin.getRefreshTimeline().getRecords());
+    }
+
+    static void writeJson(StaplerResponse rsp, Object object) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(gson.toJson(object));
+    }
+}
@@ -0,0 +1,449 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.BlobBasedConfig;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChange;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+import jenkins.model.Jenkins;
+
+/**
+ * Bare mirrors on the controller of the Gerrit projects built by Jenkins jobs.
+ * Used to find the builds required by a submit group from the change metadata
+ * and the superproject subscriptions in the mirrored .gitmodules files,
+ * instead of downloading a submit preview bundle.
+ *
+ * The mirrors are fetched incrementally in the background, when Gerrit reports
+ * a ref update for the project and at least every {@link #MAX_AGE_MINUTES}
+ * minutes. The projects of the submodules of mirrored projects are mirrored as
+ * well, recursively, so that a change in a nested submodule finds all its
+ * superprojects. Mirrors of projects no longer needed are deleted.
+ */
+public class GerritMirror {
+    private static final Logger log = LoggerFactory.getLogger(GerritMirror.class);
+    private static final long MAX_AGE_MINUTES = 10;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "GerritBuilderMirror"));
+    // The latest update requested, taken by the update task when it runs
+    private final AtomicReference<Update> pendingUpdate = new AtomicReference<Update>();
+
+    private final Map<String, Long> lastFetched = new HashMap<String, Long>();
+    // Projects built by jobs in the latest update requested, and the projects
+    // covered by the last completed update, i.e. the projects built by jobs at
+    // the time and their submodules. Fetches of covered projects may have failed.
+    private Set<String> requested = new HashSet<String>();
+    private Set<String> covered = new HashSet<String>();
+    // Not guarded by the mirror lock so that webhooks do not wait for fetches
+    private final Set<String> updatedProjects = ConcurrentHashMap.newKeySet();
+    // Superprojects subscribing to each project and branch, rebuilt after fetches
+    private Map<ProjectBranch, Set<ProjectBranch>> subscriptions;
+    private long fetches;
+    private long fetchMillis;
+
+    private static class ProjectBranch {
+        final String project;
+        final String branch;
+
+        ProjectBranch(String project, String branch) {
+            this.project = project;
+            this.branch = branch;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, branch);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProjectBranch)) {
+                return false;
+            }
+            ProjectBranch other = (ProjectBranch) o;
+            return project.equals(other.project) && branch.equals(other.branch);
+        }
+
+        @Override
+        public String toString() {
+            return project + "-" + branch;
+        }
+    }
+
+    private static class Update {
+        final Set<String> projects;
+        final String url;
+        final CredentialsProvider credentials;
+
+        Update(Set<String> projects, String url, CredentialsProvider credentials) {
+            this.projects = projects;
+            this.url = url;
+            this.credentials = credentials;
+        }
+    }
+
+    private File getRoot() {
+        return new File(Jenkins.get().getRootDir(), "gerrit-builder/mirror");
+    }
+
+    private File getDirectory(String project) {
+        return new File(getRoot(), project + ".git");
+    }
+
+    /**
+     * A branch of the project was updated in Gerrit, fetch it on the next
+     * update.
+     */
+    public void refUpdated(String project) {
+        updatedProjects.add(project);
+    }
+
+    /**
+     * Fetch the projects whose mirror is missing or out of date and delete the
+     * mirrors of projects no longer built, in the background. Returns at once,
+     * an update requested while another one is running is done after it.
+     *
+     * @param projects    The projects built by Jenkins jobs
+     * @param url         The Gerrit server URL
+     * @param credentials Used to fetch from Gerrit
+     */
+    public void update(Collection<String> projects, String url, CredentialsProvider credentials) {
+        Update update = new Update(new HashSet<String>(projects), url, credentials);
+        synchronized (this) {
+            requested = update.projects;
+        }
+        if (pendingUpdate.getAndSet(update) != null) {
+            // Not taken yet by the queued update task
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Update update = pendingUpdate.getAndSet(null);
+                    if (update != null) {
+                        Set<String> projects = fetchWithSubmodules(update);
+                        synchronized (GerritMirror.this) {
+                            covered = projects;
+                        }
+                        prune(projects);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Mirror stopped, not updating it");
+        }
+    }
+
+    /**
+     * Fetch the projects and, recursively, the projects of their submodules. A
+     * change in a submodule of a submodule also needs a build of the superproject,
+     * which is only known from the .gitmodules of the submodule in between.
+     *
+     * @return The projects and the projects of their submodules
+     */
+    private Set<String> fetchWithSubmodules(Update update) {
+        Set<String> projects = new HashSet<String>(update.projects);
+        Set<String> pending = new HashSet<String>(projects);
+        while (!pending.isEmpty()) {
+            fetchAll(pending, update.url, update.credentials);
+            Set<String> submodules = new HashSet<String>();
+            for (String project : pending) {
+                for (ProjectBranch subproject : readSubmodules(project).keySet()) {
+                    if (projects.add(subproject.project)) {
+                        submodules.add(subproject.project);
+                    }
+                }
+            }
+            pending = submodules;
+        }
+        return projects;
+    }
+
+    private void fetchAll(Collection<String> projects, String url, CredentialsProvider credentials) {
+        long now = System.currentTimeMillis();
+        for (String project : projects) {
+            Long fetched;
+            synchronized (this) {
+                fetched = lastFetched.get(project);
+            }
+            if (fetched != null && !updatedProjects.contains(project)
+                    && now - fetched < TimeUnit.MINUTES.toMillis(MAX_AGE_MINUTES)) {
+                continue;
+            }
+            // Removed before fetching so that a ref update while fetching is
+            // fetched by the next update
+            updatedProjects.remove(project);
+            try {
+                boolean changed = fetch(project, url, credentials);
+                synchronized (this) {
+                    lastFetched.put(project, now);
+                    if (changed || fetched == null) {
+                        subscriptions = null;
+                    }
+                }
+            } catch (IOException | GitAPIException | URISyntaxException e) {
+                updatedProjects.add(project);
+                log.warn("Could not update mirror of {}: {}", project, e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return True if a branch was updated
+     */
+    private boolean fetch(String project, String url, CredentialsProvider credentials)
+            throws IOException, GitAPIException, URISyntaxException {
+        long start = System.currentTimeMillis();
+        File directory = getDirectory(project);
+        if (!directory.exists()) {
+            Git.init().setBare(true).setDirectory(directory).call().close();
+        }
+        String projectUrl = new URI(url.endsWith("/") ? url : url + "/").resolve("a/" + project).toString();
+        boolean changed;
+        try (Git git = Git.open(directory)) {
+            FetchResult result = git.fetch().setRemote(projectUrl).setCredentialsProvider(credentials)
+                    .setRefSpecs(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"))
+                    .setRemoveDeletedRefs(true).call();
+            changed = !result.getTrackingRefUpdates().isEmpty();
+        }
+        long millis = System.currentTimeMillis() - start;
+        synchronized (this) {
+            fetches++;
+            fetchMillis += millis;
+        }
+        log.info("Updated mirror of {} in {} ms", project, millis);
+        return changed;
+    }
+
+    /**
+     * Delete the mirrors of projects no longer built by any job, nor a submodule
+     * of one, also the ones left by an earlier run of Jenkins.
+     */
+    private void prune(Set<String> projects) {
+        synchronized (this) {
+            // Not read by getRequiredBuilds once removed
+            if (lastFetched.keySet().retainAll(projects)) {
+                subscriptions = null;
+            }
+        }
+        File root = getRoot();
+        Map<String, File> mirrors = new HashMap<String, File>();
+        findMirrors(root, "", mirrors);
+        for (Map.Entry<String, File> entry : mirrors.entrySet()) {
+            if (projects.contains(entry.getKey())) {
+                continue;
+            }
+            try {
+                Util.deleteRecursive(entry.getValue());
+                log.info("Deleted mirror of {}, no longer needed", entry.getKey());
+            } catch (IOException e) {
+                log.warn("Could not delete mirror of {}: {}", entry.getKey(), e.toString());
+                continue;
+            }
+            // Directories of project names with slashes, only deleted when empty
+            File parent = entry.getValue().getParentFile();
+            while (parent != null && !parent.equals(root) && parent.delete()) {
+                parent = parent.getParentFile();
+            }
+        }
+    }
+
+    private static void findMirrors(File directory, String prefix, Map<String, File> mirrors) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.isDirectory()) {
+                continue;
+            }
+            String name = prefix + file.getName();
+            if (name.endsWith(".git")) {
+                mirrors.put(name.substring(0, name.length() - ".git".length()), file);
+            } else {
+                findMirrors(file, name + "/", mirrors);
+            }
+        }
+    }
+
+    /**
+     * Stop fetching, e.g. when the plugin is stopped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Find the builds required by a submit group, i.e. the project and branch of
+     * each change and of all superprojects subscribing to them.
+     *
+     * @throws IOException If the builds can not be determined from the mirror,
+     *                     e.g. a project has not been fetched yet, the submit
+     *                     preview should be used instead
+     */
+    public synchronized Set<Build> getRequiredBuilds(SubmitGroup submitGroup) throws IOException {
+        if (!covered.containsAll(requested)) {
+            throw new IOException("Mirrors not fetched yet");
+        }
+        if (subscriptions == null) {
+            subscriptions = readSubscriptions();
+        }
+        Set<ProjectBranch> required = new HashSet<ProjectBranch>();
+        Deque<ProjectBranch> pending = new ArrayDeque<ProjectBranch>();
+        for (GerritChange change : submitGroup.getSubmittedTogether()) {
+            if (change.project == null || change.branch == null) {
+                throw new IOException("Project or branch of change " + change + " not known");
+            }
+            pending.add(new ProjectBranch(change.project, change.branch));
+        }
+        while (!pending.isEmpty()) {
+            ProjectBranch projectBranch = pending.poll();
+            if (required.add(projectBranch)) {
+                Set<ProjectBranch> superprojects = subscriptions.get(projectBranch);
+                if (superprojects != null) {
+                    pending.addAll(superprojects);
+                }
+            }
+        }
+
+        Set<Build> builds = new HashSet<Build>();
+        for (ProjectBranch projectBranch : required) {
+            builds.add(new Build(submitGroup, projectBranch.project, projectBranch.branch));
+        }
+        return builds;
+    }
+
+    private Map<ProjectBranch, Set<ProjectBranch>> readSubscriptions() throws IOException {
+        Map<ProjectBranch, Set<ProjectBranch>> result = new HashMap<ProjectBranch, Set<ProjectBranch>>();
+        for (String project : lastFetched.keySet()) {
+            readSubscriptions(project, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return The submodules of all branches of a mirrored project, empty if the
+     *         mirror could not be read
+     */
+    private Map<ProjectBranch, Set<ProjectBranch>> readSubmodules(String project) {
+        Map<ProjectBranch, Set<ProjectBranch>> result = new HashMap<ProjectBranch, Set<ProjectBranch>>();
+        if (getDirectory(project).exists()) {
+            try {
+                readSubscriptions(project, result);
+            } catch (IOException e) {
+                log.warn("Could not read submodules of {}: {}", project, e.toString());
+            }
+        }
+        return result;
+    }
+
+    private void readSubscriptions(String project, Map<ProjectBranch, Set<ProjectBranch>> result)
+            throws IOException {
+        try (Repository repo = new FileRepositoryBuilder().setGitDir(getDirectory(project)).setMustExist(true)
+                .build()) {
+            for (Ref ref : repo.getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
+                String branch = ref.getName().substring(Constants.R_HEADS.length());
+                readSubscriptions(repo, new ProjectBranch(project, branch), ref, result);
+            }
+        }
+    }
+
+    private static void readSubscriptions(Repository repo, ProjectBranch superproject, Ref ref,
+            Map<ProjectBranch, Set<ProjectBranch>> result) throws IOException {
+        Config gitModules;
+        try {
+            gitModules = new BlobBasedConfig(null, repo, ref.getObjectId(), Constants.DOT_GIT_MODULES);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (ConfigInvalidException e) {
+            log.warn("Invalid .gitmodules in {}: {}", superproject, e.toString());
+            return;
+        }
+        for (String name : gitModules.getSubsections("submodule")) {
+            // Gerrit only updates submodules that have a branch configured
+            String branch = gitModules.getString("submodule", name, "branch");
+            String url = gitModules.getString("submodule", name, "url");
+            if (branch == null || url == null) {
+                continue;
+            }
+            if (branch.equals(".")) {
+                branch = superproject.branch;
+            }
+            ProjectBranch subproject = new ProjectBranch(getProjectName(superproject.project, url), branch);
+            Set<ProjectBranch> superprojects = result.get(subproject);
+            if (superprojects == null) {
+                superprojects = new HashSet<ProjectBranch>();
+                result.put(subproject, superprojects);
+            }
+            superprojects.add(superproject);
+        }
+    }
+
+    /**
+     * @return The Gerrit project name of a submodule URL, relative URLs are
+     *         relative to the superproject
+     */
+    static String getProjectName(String superproject, String url) {
+        String path = url;
+        int scheme = url.indexOf("://");
+        if (scheme >= 0) {
+            int slash = url.indexOf('/', scheme + 3);
+            path = slash >= 0 ? url.substring(slash + 1) : "";
+            if (path.startsWith("a/")) {
+                path = path.substring(2);
+            }
+        } else {
+            // Same normalization as when applying the submit preview, i.e. convert
+            // "main/../submodule1" to "submodule1"
+            path = new File(new File(superproject), url).toPath().normalize().toString()
+                    .replace(File.separatorChar, '/');
+        }
+        return path.replaceFirst("\\.git$", "");
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("mirroredProjects", lastFetched.size());
+        stats.put("fetches", fetches);
+        stats.put("meanFetchMillis", fetches > 0 ? fetchMillis / fetches : 0);
+        return stats;
+    }
+}
@@ -0,0 +1,74 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import hudson.Extension;
+import hudson.model.CauseAction;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.QueueSorter;
+
+/**
+ * Orders buildable items triggered by this plugin according to the priority of
+ * their submit group, and within the same priority shortest predicted build
+ * first. Items not triggered by this plugin keep their position in the queue,
+ * only the Gerrit builds are reordered among themselves.
+ *
+ * Long builds are not starved forever since the priority grows with the age of
+ * the submit group.
+ */
+@Extension
+public class GerritQueueSorter extends QueueSorter {
+
+    private static final Comparator<BuildableItem> COMPARATOR = new Comparator<BuildableItem>() {
+        @Override
+        public int compare(BuildableItem a, BuildableItem b) {
+            GerritBuilderCause causeA = getCause(a);
+            GerritBuilderCause causeB = getCause(b);
+            int result = Integer.compare(causeB.getPriority(), causeA.getPriority());
+            if (result == 0) {
+                result = Long.compare(sortableDuration(causeA), sortableDuration(causeB));
+            }
+            if (result == 0) {
+                result = Long.compare(a.getInQueueSince(), b.getInQueueSince());
+            }
+            return result;
+        }
+    };
+
+    @Override
+    public void sortBuildableItems(List<BuildableItem> buildables) {
+        List<Integer> slots = new ArrayList<Integer>();
+        List<BuildableItem> gerritItems = new ArrayList<BuildableItem>();
+        for (int i = 0; i < buildables.size(); i++) {
+            if (getCause(buildables.get(i)) != null) {
+                slots.add(i);
+                gerritItems.add(buildables.get(i));
+            }
+        }
+        if (gerritItems.size() < 2) {
+            return;
+        }
+        Collections.sort(gerritItems, COMPARATOR);
+        for (int i = 0; i < slots.size(); i++) {
+            buildables.set(slots.get(i), gerritItems.get(i));
+        }
+    }
+
+    // Builds without any prediction are sorted after the ones we know are short
+    private static long sortableDuration(GerritBuilderCause cause) {
+        long duration = cause.getPredictedDuration();
+        return duration == BuildDurationEstimator.UNKNOWN ? Long.MAX_VALUE : duration;
+    }
+
+    static GerritBuilderCause getCause(Queue.Item item) {
+        CauseAction causeAction = item.getAction(CauseAction.class);
+        if (causeAction != null) {
+            return causeAction.findCause(GerritBuilderCause.class);
+        }
+        return null;
+    }
+}
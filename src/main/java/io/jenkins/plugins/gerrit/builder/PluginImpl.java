@@ -11,27 +11,39 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.CheckForNull;
 
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.kohsuke.stapler.export.ExportedBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.codahale.metrics.Timer;
 import com.google.gerrit.extensions.restapi.RestApiException;
 
 import hudson.ExtensionList;
 import hudson.Plugin;
 import hudson.model.CauseAction;
+import hudson.model.Executor;
+import hudson.model.Item;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
@@ -40,9 +52,14 @@ import hudson.plugins.git.UserRemoteConfig;
 import hudson.scm.SCM;
 import hudson.util.SequentialExecutionQueue;
 import io.jenkins.plugins.gerrit.builder.fetcher.Build;
+import io.jenkins.plugins.gerrit.builder.fetcher.FetchStrategy;
 import io.jenkins.plugins.gerrit.builder.fetcher.GerritChange;
 import io.jenkins.plugins.gerrit.builder.fetcher.GerritChangeFetcher;
 import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroupReducer;
+import io.jenkins.plugins.gerrit.builder.jfr.JfrEvents;
+import io.jenkins.plugins.gerrit.builder.jfr.JobMatchEvent;
+import io.jenkins.plugins.gerrit.builder.jfr.ScheduleBuildEvent;
 import io.jenkins.plugins.gerrit.builder.scm.GerritBuilderExtension;
 import io.jenkins.plugins.gerrit.builder.webhook.GerritProjectEvent;
 import jenkins.model.Jenkins;
@@ -60,6 +77,32 @@ public class PluginImpl extends Plugin {
 
     private transient Configuration config;
     private Map<SubmitGroup, SubmitGroupBuildStatus> submitGroupStatuses = new HashMap<SubmitGroup, SubmitGroupBuildStatus>();
+    // Changes that got their Verified vote reset, they are prioritized when retriggered
+    private final transient Set<Integer> verifiedResetChanges = Collections.synchronizedSet(new HashSet<Integer>());
+    private final transient BuildDurationEstimator durationEstimator = new BuildDurationEstimator();
+    private final transient BuildThrottle throttle = new BuildThrottle();
+    private final transient BundleStaging bundleStaging = new BundleStaging();
+    private final transient FetchStrategyStats fetchStrategyStats = new FetchStrategyStats();
+    private final transient GerritMirror mirror = new GerritMirror();
+    private final transient ChangeLatencyTracker latencyTracker = new ChangeLatencyTracker();
+    private final transient RefreshTimeline refreshTimeline = new RefreshTimeline();
+    private final transient AtomicReference<StatusSnapshot> statusSnapshot = new AtomicReference<StatusSnapshot>(
+            StatusSnapshot.EMPTY);
+    // Snapshot of each submit group status, guarded by the submit group statuses
+    private final transient Map<SubmitGroup, StatusSnapshot.SubmitGroupSnapshot> groupSnapshots =
+            new HashMap<SubmitGroup, StatusSnapshot.SubmitGroupSnapshot>();
+    private final transient AtomicLong expiredGroups = new AtomicLong();
+    private final transient AtomicLong overflowGroups = new AtomicLong();
+    private final transient AtomicLong lostBuilds = new AtomicLong();
+    // A refresh requested while another one is waiting to run is coalesced
+    private final transient AtomicLong refreshesRequested = new AtomicLong();
+    private final transient AtomicLong refreshesRun = new AtomicLong();
+
+    // Time a build may be neither in the queue nor running, e.g. while it is
+    // handed from the queue to an executor, before it is considered lost. It is
+    // counted for each build from when it was triggered, last seen in the queue
+    // or started.
+    private static final long LOST_BUILD_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
     private final transient SequentialExecutionQueue queue = new SequentialExecutionQueue(threadPoolForRemoting);
 
@@ -80,7 +123,13 @@ public class PluginImpl extends Plugin {
         StandardUsernamePasswordCredentials cred = ApiHelper.getCredentials(credentialsId);
         String url = getConfiguration().getGerritServerUrl();
 
-        return ApiHelper.createFetcher(url, cred, null);
+        GerritChangeFetcher fetcher = ApiHelper.createFetcher(url, cred, null);
+        if (fetcher != null) {
+            fetcher.setListener(GerritBuilderMetrics.get());
+            fetcher.setOpenChangesQuery(getConfiguration().getOpenChangesMaxAgeDays(),
+                    getConfiguration().getOpenChangesPageSize(), getConfiguration().getMaxOpenChanges());
+        }
+        return fetcher;
     }
 
     @Override
@@ -88,6 +137,12 @@ public class PluginImpl extends Plugin {
         scheduleRefresh();
     }
 
+    @Override
+    public void stop() throws Exception {
+        bundleStaging.shutdown();
+        mirror.shutdown();
+    }
+
     @CheckForNull
     public static PluginImpl getInstance() {
         Jenkins jenkins = Jenkins.getInstanceOrNull();
@@ -101,81 +156,307 @@ public class PluginImpl extends Plugin {
 
     public void webHookEvent(GerritProjectEvent projectEvent) {
         log.info("Got Webhook:" + projectEvent);
+        if (projectEvent.change != null
+                && ("vote-deleted".equals(projectEvent.type) || "comment-added".equals(projectEvent.type))) {
+            // The webhook only forwards these events when Verified was reset
+            verifiedResetChanges.add(projectEvent.change.number);
+        }
+        if ("patchset-created".equals(projectEvent.type) && projectEvent.change != null
+                && projectEvent.patchSet != null) {
+            latencyTracker.received(projectEvent.change.number, projectEvent.patchSet.number,
+                    TimeUnit.SECONDS.toMillis(projectEvent.patchSet.createdOn));
+        }
+        if ("ref-updated".equals(projectEvent.type) && projectEvent.getProjectName() != null) {
+            mirror.refUpdated(projectEvent.getProjectName());
+        }
         // TODO Update open changes according to event. For now, just read them all
         scheduleRefresh();
     }
 
-    private Set<GerritChange> fetchChanges(GerritChangeFetcher fetcher) {
+    /**
+     * Fetch the open changes and find their submit groups. Each page of open
+     * changes is grouped and reduced as soon as it is fetched. The number of open
+     * changes tracked is limited by the configured max number of open changes.
+     *
+     * @return The reduced submit groups by name, or null if fetching failed
+     */
+    private AbstractMap<String, SubmitGroup> fetchChanges(final GerritChangeFetcher fetcher,
+            final RefreshTimeline.Record record) {
         Instant start = Instant.now();
-        Set<GerritChange> openChanges = Collections.emptySet();
+        final Set<GerritChange> openChanges = new HashSet<GerritChange>();
+        final SubmitGroupReducer reducer = new SubmitGroupReducer();
+        final long[] fetchNanos = new long[1];
         try {
-            openChanges = fetcher.getOpenChanges();
-            log.info("openChanges=" + openChanges.size());
+            fetcher.getOpenChanges(new GerritChangeFetcher.OpenChangesHandler() {
+                private long pageStart = System.nanoTime();
+
+                @Override
+                public void onPage(Set<GerritChange> changes) throws RestApiException {
+                    record.phaseDone("fetchChanges", pageStart);
+                    fetchNanos[0] += System.nanoTime() - pageStart;
+                    // A change moving between pages is only grouped once
+                    Set<GerritChange> newChanges = new HashSet<GerritChange>();
+                    for (GerritChange change : changes) {
+                        if (openChanges.add(change)) {
+                            newChanges.add(change);
+                        }
+                    }
+                    long phaseStart = System.nanoTime();
+                    fetcher.addSubmitGroups(newChanges, reducer);
+                    record.phaseDone("submitGroups", phaseStart);
+                    pageStart = System.nanoTime();
+                }
+            });
         } catch (RestApiException e) {
             log.error("Could not fetch open changes", e);
+            record.error = e.toString();
+            return null;
+        } finally {
+            record.openChanges = openChanges.size();
+            GerritBuilderMetrics.get().fetchChanges.update(fetchNanos[0], TimeUnit.NANOSECONDS);
         }
+        log.info("openChanges=" + openChanges.size());
+        latencyTracker.retain(openChanges);
         Instant end = Instant.now();
-        log.info("Took {} to fetch open changes", Duration.between(start, end));
-        return openChanges;
+        log.info("Took {} to fetch and group open changes", Duration.between(start, end));
+        return reducer.getSubmitGroups();
     }
 
     /**
      * This method will calculate builds required for the open changes. It will
      * download a submit preview git bundle for each submit group in order to
-     * determine this.
+     * determine this, unless the git mirror is enabled.
      * 
      * @param fetcher
      */
-    private void scheduleBuilds(GerritChangeFetcher fetcher, Set<GerritChange> openChanges) {
+    private void scheduleBuilds(GerritChangeFetcher fetcher, AbstractMap<String, SubmitGroup> submitGroups,
+            RefreshTimeline.Record record) {
         Instant start = Instant.now();
-        // Group the open changes into submit groups
         try {
-            AbstractMap<String, SubmitGroup> submitGroups = fetcher.getSubmitGroups(openChanges);
+            record.submitGroups = submitGroups.size();
             log.info("submitGroups=" + submitGroups.size());
+            GerritBuilderMetrics.get().submitGroupsPerRefresh.update(submitGroups.size());
+            long phaseStart = System.nanoTime();
             List<JobInfo> allAvailableJenkinsJobs = findAllJobs();
+            record.phaseDone("findJobs", phaseStart);
             int buildCount = 0;
+            boolean useMirror = getConfiguration().getUseGitMirror();
+            if (useMirror) {
+                phaseStart = System.nanoTime();
+                updateMirror(allAvailableJenkinsJobs);
+                record.phaseDone("updateMirror", phaseStart);
+            }
 
+            // Trigger the groups closest to being merged first
+            final Map<SubmitGroup, Integer> priorities = new HashMap<SubmitGroup, Integer>();
+            long now = System.currentTimeMillis();
             for (SubmitGroup submitGroup : submitGroups.values()) {
-                log.info("  Submit group: " + submitGroup.toString() + " with following " + submitGroup.size()
-                        + " items:");
+                priorities.put(submitGroup, SubmitGroupPriority.of(submitGroup, verifiedResetChanges, now));
+            }
+            List<SubmitGroup> orderedGroups = new ArrayList<SubmitGroup>(submitGroups.values());
+            Collections.sort(orderedGroups, new Comparator<SubmitGroup>() {
+                @Override
+                public int compare(SubmitGroup a, SubmitGroup b) {
+                    return priorities.get(b).compareTo(priorities.get(a));
+                }
+            });
+
+            for (SubmitGroup submitGroup : orderedGroups) {
+                int priority = priorities.get(submitGroup);
+                log.info("  Submit group: " + submitGroup.toString() + " with priority " + priority + " and following "
+                        + submitGroup.size() + " items:");
                 for (GerritChange change : submitGroup) {
                     log.info("    Change:" + change.toDebugString());
                 }
                 log.info("    Builds:");
-                Set<Build> builds = fetcher.getRequiredBuilds(submitGroup);
-                for (Build build : builds) {
-                    buildCount++;
-                    triggerBuilds(allAvailableJenkinsJobs, submitGroup, build);
+                latencyTracker.reached(submitGroup, ChangeLatencyTracker.Stage.GROUPED);
+                phaseStart = System.nanoTime();
+                Set<Build> builds = getRequiredBuilds(fetcher, submitGroup, useMirror);
+                record.phaseDone("requiredBuilds", phaseStart);
+                latencyTracker.reached(submitGroup, ChangeLatencyTracker.Stage.PREVIEWED);
+                buildCount += builds.size();
+                FetchStrategy fetchStrategy = selectFetchStrategy(fetcher, submitGroup, builds);
+                phaseStart = System.nanoTime();
+                if (!triggerSubmitGroup(allAvailableJenkinsJobs, submitGroup, builds, priority, fetchStrategy)) {
+                    record.deferredGroups++;
                 }
+                record.phaseDone("trigger", phaseStart);
             }
+            throttle.retain(new HashSet<SubmitGroup>(submitGroups.values()));
+            record.builds = buildCount;
             log.info("Total {} builds", buildCount);
         } catch (RestApiException e) {
             log.error("Problem scheduling builds", e);
+            record.error = e.toString();
         } catch (IOException e) {
             log.error("Problem scheduling builds", e);
+            record.error = e.toString();
+        }
+        // Publish the groups triggered by this refresh at once
+        synchronized (submitGroupStatuses) {
+            publishStatusSnapshot();
         }
 
         Instant end = Instant.now();
         log.info("Took {} to schedule builds", Duration.between(start, end));
-        printSubmitGroupStatues();
+        GerritBuilderMetrics.get().scheduleBuilds.update(Duration.between(start, end).toNanos(), TimeUnit.NANOSECONDS);
+        if (log.isDebugEnabled()) {
+            printSubmitGroupStatues();
+        }
+    }
+
+    /**
+     * Copy the status of a submit group for the next status snapshot, or drop
+     * it if the submit group is no longer tracked. Must be called with a lock
+     * held on the submit group statuses, after the status was changed.
+     */
+    private void updateGroupSnapshot(SubmitGroup submitGroup) {
+        SubmitGroupBuildStatus status = submitGroupStatuses.get(submitGroup);
+        if (status != null) {
+            groupSnapshots.put(submitGroup, new StatusSnapshot.SubmitGroupSnapshot(submitGroup, status));
+        } else {
+            groupSnapshots.remove(submitGroup);
+        }
+    }
+
+    /**
+     * Publish the submit group snapshots for {@link #getStatusSnapshot()}. Must
+     * be called with a lock held on the submit group statuses. Batches of
+     * changes, e.g. a refresh, only publish once at the end.
+     */
+    private void publishStatusSnapshot() {
+        statusSnapshot.set(new StatusSnapshot(groupSnapshots.values(), throttle.getDeferredCount()));
+    }
+
+    /**
+     * @return The latest snapshot of the submit group statuses, does not take any
+     *         lock
+     */
+    public StatusSnapshot getStatusSnapshot() {
+        return statusSnapshot.get();
+    }
+
+    private Set<Build> getRequiredBuilds(GerritChangeFetcher fetcher, SubmitGroup submitGroup, boolean useMirror)
+            throws IOException, RestApiException {
+        if (useMirror) {
+            try {
+                return mirror.getRequiredBuilds(submitGroup);
+            } catch (IOException e) {
+                log.warn("Could not use git mirror for {}, using submit preview: {}", submitGroup, e.toString());
+            }
+        }
+        return fetcher.getRequiredBuilds(submitGroup);
+    }
+
+    private FetchStrategy selectFetchStrategy(GerritChangeFetcher fetcher, SubmitGroup submitGroup,
+            Set<Build> builds) {
+        try {
+            return FetchStrategy.select(submitGroup, builds, fetcher);
+        } catch (RestApiException e) {
+            log.warn("Could not check if {} can be fetched directly, using submit preview: {}", submitGroup,
+                    e.toString());
+            return FetchStrategy.SUBMIT_PREVIEW;
+        }
+    }
+
+    private void updateMirror(List<JobInfo> allAvailableJenkinsJobs) {
+        Set<String> projects = new HashSet<String>();
+        for (JobInfo jobInfo : allAvailableJenkinsJobs) {
+            projects.addAll(jobInfo.getProjectNames());
+        }
+        StandardUsernamePasswordCredentials cred = ApiHelper.getCredentials(getConfiguration().getCredentialsId());
+        if (cred == null) {
+            log.warn("No credentials configured, can not update git mirror");
+            return;
+        }
+        mirror.update(projects, getConfiguration().getGerritServerUrl(), new UsernamePasswordCredentialsProvider(
+                cred.getUsername(), cred.getPassword().getPlainText()));
     }
 
     private void printSubmitGroupStatues() {
-        log.info("------------------------------------------------------------------");
-        log.info("------------------------------------------------------------------");
-        for (SubmitGroup submitGroup : submitGroupStatuses.keySet()) {
-            log.info("--- submitGroup: ---", submitGroup);
-            SubmitGroupBuildStatus status = submitGroupStatuses.get(submitGroup);
-            log.info("submitGroupStatus: {}", status);
+        synchronized (submitGroupStatuses) {
+            for (Map.Entry<SubmitGroup, SubmitGroupBuildStatus> entry : submitGroupStatuses.entrySet()) {
+                log.debug("Submit group {}: {}", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Trigger all builds for a submit group, or defer the submit group if there is
+     * not enough capacity for its builds.
+     *
+     * @return false if the submit group was deferred
+     */
+    private boolean triggerSubmitGroup(List<JobInfo> allAvailableJenkinsJobs, SubmitGroup submitGroup,
+            Set<Build> builds, int priority, FetchStrategy fetchStrategy) {
+        JobMatchEvent matchEvent = JfrEvents.beginJobMatch(submitGroup.first()._number, submitGroup.size(),
+                builds.size(), allAvailableJenkinsJobs.size());
+        List<BuildKey> buildKeys = new ArrayList<BuildKey>();
+        for (Build build : builds) {
+            for (JobInfo jobInfo : findJobs(allAvailableJenkinsJobs, build)) {
+                buildKeys.add(new BuildKey(build, jobInfo.job.getFullName()));
+            }
+        }
+        JfrEvents.end(matchEvent, buildKeys.size());
+        synchronized (submitGroupStatuses) {
+            if (!throttle.hasCapacity(getConfiguration(), submitGroupStatuses, submitGroup, buildKeys)) {
+                throttle.defer(submitGroup, builds, priority, fetchStrategy);
+                return false;
+            }
+            throttle.released(submitGroup);
+            boolean triggered = false;
+            for (Build build : builds) {
+                triggered |= triggerBuilds(allAvailableJenkinsJobs, submitGroup, build, priority, fetchStrategy);
+            }
+            if (triggered) {
+                latencyTracker.reached(submitGroup, ChangeLatencyTracker.Stage.QUEUED);
+                for (GerritChange change : submitGroup) {
+                    verifiedResetChanges.remove(change._number);
+                }
+                if (fetchStrategy == FetchStrategy.SUBMIT_PREVIEW) {
+                    bundleStaging.prefetch(submitGroup);
+                }
+                updateGroupSnapshot(submitGroup);
+            }
         }
-        log.info("------------------------------------------------------------------");
-        log.info("------------------------------------------------------------------");
+        return true;
     }
 
-    private void triggerBuilds(List<JobInfo> allAvailableJenkinsJobs, SubmitGroup submitGroup, Build build) {
-        ParametersAction parametersAction = getParametersAction(build);
-        CauseAction causeAction = new CauseAction(new GerritBuilderCause(submitGroup, build));
-        int jobsFound = 0;
+    /**
+     * Trigger deferred submit groups in priority order until we run out of
+     * capacity again.
+     */
+    private void releaseDeferredGroups() {
+        List<BuildThrottle.DeferredSubmitGroup> deferredGroups = throttle.getDeferred();
+        if (deferredGroups.isEmpty()) {
+            return;
+        }
+        List<JobInfo> allAvailableJenkinsJobs = findAllJobs();
+        for (BuildThrottle.DeferredSubmitGroup deferred : deferredGroups) {
+            if (!triggerSubmitGroup(allAvailableJenkinsJobs, deferred.submitGroup, deferred.builds,
+                    deferred.priority, deferred.fetchStrategy)) {
+                break;
+            }
+        }
+        synchronized (submitGroupStatuses) {
+            publishStatusSnapshot();
+        }
+    }
+
+    /**
+     * Trigger the build in all Jenkins jobs building its Gerrit project, unless
+     * already triggered.
+     *
+     * @return true if a new build was scheduled
+     */
+    private boolean triggerBuilds(List<JobInfo> allAvailableJenkinsJobs, SubmitGroup submitGroup, Build build,
+            int priority, FetchStrategy fetchStrategy) {
+        List<JobInfo> jobs = findJobs(allAvailableJenkinsJobs, build);
+        if (jobs.isEmpty()) {
+            log.warn("No build jobs found that can build this submit group");
+            return false;
+        }
+        boolean triggered = false;
 
         synchronized (submitGroupStatuses) {
             if (!submitGroupStatuses.containsKey(submitGroup)) {
@@ -183,31 +464,47 @@ public class PluginImpl extends Plugin {
                 submitGroupStatuses.put(submitGroup, new SubmitGroupBuildStatus());
             }
             SubmitGroupBuildStatus submitGroupStatus = submitGroupStatuses.get(submitGroup);
-            // Loop all available Jenkins jobs and find which ones we should trigger
-            for (JobInfo jobInfo : allAvailableJenkinsJobs) {
-                if (jobInfo.matchesProject(build.project)) {
-                    jobsFound++;
-                    if (!submitGroupStatus.containsBuild(build)) {
-                        log.info("-------------------------------------------------------------");
-                        log.info("Triggering build: {} for {}", jobInfo.job.getName(), build);
-                        log.info("-------------------------------------------------------------");
-                        jobInfo.job.scheduleBuild2(0, parametersAction, causeAction);
-                        // TODO This means we only support one Jenkins project / Gerrit project
-                        // in order to change this we must also have the jobInfo.job.getName() as a key
-                        // in the submitGroupStatus
-                        submitGroupStatus.onTriggered(build);
-                        break;
-                    } else {
-                        log.info("-------------------------------------------------------------");
-                        log.info("Build is already started, no need to start another one");
-                        log.info("-------------------------------------------------------------");
-                    }
+            for (JobInfo jobInfo : jobs) {
+                BuildKey buildKey = new BuildKey(build, jobInfo.job.getFullName());
+                if (!submitGroupStatus.containsBuild(buildKey)) {
+                    log.info("-------------------------------------------------------------");
+                    long predictedDuration = durationEstimator.predict(jobInfo.job.getFullName(), build,
+                            jobInfo.job.getEstimatedDuration());
+                    log.info("Triggering build: {} for {}, predicted duration {} ms", jobInfo.job.getName(), build,
+                            predictedDuration);
+                    log.info("-------------------------------------------------------------");
+                    // Actions are attached to the run, so each job needs its own instances
+                    CauseAction causeAction = new CauseAction(
+                            new GerritBuilderCause(submitGroup, build, priority, predictedDuration, fetchStrategy));
+                    ScheduleBuildEvent scheduleEvent = JfrEvents.beginScheduleBuild(jobInfo.job.getFullName(),
+                            build.project, build.branch, build.getChangeNumber(), submitGroup.size());
+                    jobInfo.job.scheduleBuild2(0, getParametersAction(build), causeAction);
+                    JfrEvents.end(scheduleEvent);
+                    submitGroupStatus.onTriggered(buildKey);
+                    triggered = true;
+                    GerritBuilderMetrics.get().buildsTriggered.inc();
+                } else {
+                    GerritBuilderMetrics.get().buildsDeduplicated.inc();
+                    log.info("-------------------------------------------------------------");
+                    log.info("Build {} is already started, no need to start another one", buildKey);
+                    log.info("-------------------------------------------------------------");
                 }
             }
         }
-        if (jobsFound == 0) {
-            log.warn("No build jobs found that can build this submit group");
+        return triggered;
+    }
+
+    /**
+     * @return All Jenkins jobs that build the Gerrit project of the build
+     */
+    private List<JobInfo> findJobs(List<JobInfo> allAvailableJenkinsJobs, Build build) {
+        List<JobInfo> jobs = new ArrayList<JobInfo>();
+        for (JobInfo jobInfo : allAvailableJenkinsJobs) {
+            if (jobInfo.matchesProject(build.project)) {
+                jobs.add(jobInfo);
+            }
         }
+        return jobs;
     }
 
     private ParametersAction getParametersAction(Build build) {
@@ -218,7 +515,7 @@ public class PluginImpl extends Plugin {
         return new ParametersAction(params);
     }
 
-    class JobInfo {
+    static class JobInfo {
         public Set<URL> urls;
         public WorkflowJob job;
 
@@ -237,6 +534,23 @@ public class PluginImpl extends Plugin {
             }
         }
 
+        /**
+         * @return The Gerrit project names of the remote URLs
+         */
+        public Set<String> getProjectNames() {
+            Set<String> projects = new HashSet<String>();
+            for (URL url : urls) {
+                String path = url.getPath();
+                if (path.startsWith("/a/")) {
+                    path = path.substring(3);
+                } else if (path.startsWith("/")) {
+                    path = path.substring(1);
+                }
+                projects.add(path);
+            }
+            return projects;
+        }
+
         public boolean matchesProject(String project) {
             boolean result = false;
             for (URL url : urls) {
@@ -284,21 +598,65 @@ public class PluginImpl extends Plugin {
         return result;
     }
 
+    // Set when a task is scheduled and cleared when it starts, the queue
+    // coalesces a task that is scheduled again before it started
+    private final transient AtomicBoolean refreshPending = new AtomicBoolean();
+    private final transient AtomicBoolean releasePending = new AtomicBoolean();
+
     private final Runnable refreshRun = new Runnable() {
         public void run() {
+            refreshPending.set(false);
+            refreshesRun.incrementAndGet();
             GerritChangeFetcher fetcher = createFetcher();
             if (fetcher != null) {
-                Set<GerritChange> openChanges = fetchChanges(fetcher);
-                scheduleBuilds(fetcher, openChanges);
+                RefreshTimeline.Record record = new RefreshTimeline.Record();
+                AbstractMap<String, SubmitGroup> submitGroups = fetchChanges(fetcher, record);
+                if (submitGroups != null) {
+                    scheduleBuilds(fetcher, submitGroups, record);
+                }
+                record.restCalls = fetcher.getRestCallCounts();
+                record.bytesDownloaded = fetcher.getBytesDownloaded();
+                refreshTimeline.add(record);
+                fetcher.close();
             }
         }
     };
 
     private void scheduleRefresh() {
         log.info("Scheduling a refresh...");
+        refreshesRequested.incrementAndGet();
+        refreshPending.set(true);
         queue.execute(refreshRun);
     }
 
+    private final Runnable releaseRun = new Runnable() {
+        public void run() {
+            releasePending.set(false);
+            releaseDeferredGroups();
+        }
+    };
+
+    private void scheduleRelease() {
+        releasePending.set(true);
+        queue.execute(releaseRun);
+    }
+
+    /**
+     * @return Number of refresh and release tasks waiting to run or running
+     */
+    int getQueueBacklog() {
+        int backlog = queue.getInProgress().size();
+        backlog += refreshPending.get() ? 1 : 0;
+        backlog += releasePending.get() ? 1 : 0;
+        return backlog;
+    }
+
+    int getTrackedGroupCount() {
+        synchronized (submitGroupStatuses) {
+            return submitGroupStatuses.size();
+        }
+    }
+
     enum BuildState {
         STARTED, COMPLETED
     };
@@ -315,11 +673,12 @@ public class PluginImpl extends Plugin {
                 SubmitGroupBuildStatus submitGroupStatus = submitGroupStatuses.get(submitGroup);
                 if (submitGroupStatus != null) {
                     Build build = gerritBuilderCause.getBuild();
+                    BuildKey buildKey = new BuildKey(build, run.getParent().getFullName());
                     if (state == BuildState.COMPLETED) {
                         if (run.getResult() == Result.SUCCESS) {
-                            submitGroupStatus.onSuccess(build);
+                            submitGroupStatus.onSuccess(buildKey);
                         } else {
-                            submitGroupStatus.onFailure(build);
+                            submitGroupStatus.onFailure(buildKey);
                         }
                         if (submitGroupStatus.completed()) {
                             // Remove the SubmitGroup from our list in order to enable rebuild
@@ -328,22 +687,34 @@ public class PluginImpl extends Plugin {
                             finishedSubmitGroupStatus = submitGroupStatus;
                         }
                     } else {
+                        latencyTracker.reached(submitGroup, ChangeLatencyTracker.Stage.STARTED);
                         startedSubmitGroupStatus = submitGroupStatus;
-                        log.info("Build {} started", build);
-                        submitGroupStatus.onStarted(build);
+                        log.info("Build {} started", buildKey);
+                        submitGroupStatus.onStarted(buildKey, run.getExternalizableId());
+                        // Added under the lock since the status snapshot copies them
+                        submitGroupStatus.addBuildURL(run.getAbsoluteUrl());
                         try {
                             run.setDescription(build.toString());
                         } catch (IOException e) {
                             log.info("Could not set any description");
                         }
                     }
-                } else {
+                } else if (state == BuildState.STARTED) {
                     log.info("Build is old, cancel it!");
-                    run.getExecutor().interrupt();
+                    Executor executor = run.getExecutor();
+                    if (executor != null) {
+                        executor.interrupt();
+                    }
+                }
+                if (submitGroupStatus != null) {
+                    updateGroupSnapshot(submitGroup);
+                    publishStatusSnapshot();
                 }
             }
 
             if (finishedSubmitGroupStatus != null) {
+                latencyTracker.reached(submitGroup, ChangeLatencyTracker.Stage.COMPLETED);
+                bundleStaging.remove(submitGroup);
                 boolean success = finishedSubmitGroupStatus.success();
                 String header;
                 if (success) {
@@ -359,10 +730,11 @@ public class PluginImpl extends Plugin {
                 }
 
                 String message = getMessage(header, submitGroup, finishedSubmitGroupStatus);
-                submitReviewScore(submitGroup, message, true, success ? 1 : -1);
+                if (submitReviewScore(submitGroup, message, true, success ? 1 : -1)) {
+                    latencyTracker.reached(submitGroup, ChangeLatencyTracker.Stage.VOTED);
+                }
             }
             if (startedSubmitGroupStatus != null) {
-                startedSubmitGroupStatus.addBuildURL(run.getAbsoluteUrl());
                 if (startedSubmitGroupStatus.allBuildsStarted()) {
                     String message = getMessage("Build started", submitGroup, startedSubmitGroupStatus);
                     submitReviewScore(submitGroup, message, false, 0);
@@ -374,6 +746,130 @@ public class PluginImpl extends Plugin {
         }
     }
 
+    /**
+     * Stop tracking submit groups that will never complete so they do not leak
+     * and block retriggering.
+     *
+     * Builds that are neither in the Jenkins queue nor running are forgotten so
+     * that the next refresh triggers them again, once the grace period since each
+     * build was triggered, last seen in the queue or started has passed. Submit
+     * groups without any build state change within the configured time to live
+     * are removed, and if there are still too many submit groups the least
+     * recently updated ones are removed.
+     */
+    void reapSubmitGroupStatuses() {
+        Configuration config = getConfiguration();
+        long now = System.currentTimeMillis();
+        long ttl = TimeUnit.MINUTES.toMillis(config.getStatusTtlMinutes());
+        int maxTrackedGroups = config.getMaxTrackedGroups();
+
+        // Look at the queue before the statuses so a build leaving the queue is
+        // covered by the grace period
+        Set<BuildKey> queuedBuilds = new HashSet<BuildKey>();
+        for (Queue.Item item : Jenkins.get().getQueue().getItems()) {
+            GerritBuilderCause cause = GerritQueueSorter.getCause(item);
+            if (cause != null && item.task instanceof Item) {
+                queuedBuilds.add(new BuildKey(cause.getBuild(), ((Item) item.task).getFullName()));
+            }
+        }
+
+        int evicted = 0;
+        int forgotten = 0;
+        synchronized (submitGroupStatuses) {
+            Iterator<Map.Entry<SubmitGroup, SubmitGroupBuildStatus>> it = submitGroupStatuses.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<SubmitGroup, SubmitGroupBuildStatus> entry = it.next();
+                SubmitGroupBuildStatus status = entry.getValue();
+                if (ttl > 0 && now - status.getLastUpdated() > ttl) {
+                    log.warn("Submit group {} had no progress for {} minutes, stop tracking it", entry.getKey(),
+                            config.getStatusTtlMinutes());
+                    it.remove();
+                    groupSnapshots.remove(entry.getKey());
+                    expiredGroups.incrementAndGet();
+                    evicted++;
+                } else {
+                    int lost = forgetLostBuilds(entry.getKey(), status, queuedBuilds, now);
+                    if (lost > 0) {
+                        updateGroupSnapshot(entry.getKey());
+                        forgotten += lost;
+                    }
+                }
+            }
+
+            if (maxTrackedGroups > 0 && submitGroupStatuses.size() > maxTrackedGroups) {
+                List<Map.Entry<SubmitGroup, SubmitGroupBuildStatus>> entries =
+                        new ArrayList<Map.Entry<SubmitGroup, SubmitGroupBuildStatus>>(submitGroupStatuses.entrySet());
+                Collections.sort(entries, new Comparator<Map.Entry<SubmitGroup, SubmitGroupBuildStatus>>() {
+                    @Override
+                    public int compare(Map.Entry<SubmitGroup, SubmitGroupBuildStatus> a,
+                            Map.Entry<SubmitGroup, SubmitGroupBuildStatus> b) {
+                        return Long.compare(a.getValue().getLastUpdated(), b.getValue().getLastUpdated());
+                    }
+                });
+                int overflow = submitGroupStatuses.size() - maxTrackedGroups;
+                for (int i = 0; i < overflow; i++) {
+                    log.warn("Tracking too many submit groups, stop tracking {}", entries.get(i).getKey());
+                    submitGroupStatuses.remove(entries.get(i).getKey());
+                    groupSnapshots.remove(entries.get(i).getKey());
+                    overflowGroups.incrementAndGet();
+                    evicted++;
+                }
+            }
+            if (evicted > 0 || forgotten > 0) {
+                publishStatusSnapshot();
+            }
+        }
+
+        synchronized (submitGroupStatuses) {
+            bundleStaging.retain(new HashSet<SubmitGroup>(submitGroupStatuses.keySet()));
+        }
+
+        if (evicted > 0 || forgotten > 0) {
+            log.info("Stopped tracking {} submit groups and {} lost builds", evicted, forgotten);
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * Forget builds that are neither queued nor running, and were not triggered,
+     * seen in the queue or started within the grace period. Must be called with a
+     * lock held on the submit group statuses.
+     *
+     * @param now When the queue was looked at
+     * @return The number of forgotten builds
+     */
+    private int forgetLostBuilds(SubmitGroup submitGroup, SubmitGroupBuildStatus status, Set<BuildKey> queuedBuilds,
+            long now) {
+        List<BuildKey> lost = new ArrayList<BuildKey>();
+        for (BuildKey buildKey : status.getTriggeredBuilds()) {
+            if (queuedBuilds.contains(buildKey)) {
+                status.onQueued(buildKey, now);
+            } else if (now - status.getPendingSince(buildKey) > LOST_BUILD_GRACE_MILLIS) {
+                lost.add(buildKey);
+            }
+        }
+        for (Map.Entry<BuildKey, String> started : status.getStartedBuilds().entrySet()) {
+            if (now - status.getPendingSince(started.getKey()) <= LOST_BUILD_GRACE_MILLIS) {
+                continue;
+            }
+            Run<?, ?> run = null;
+            try {
+                run = Run.fromExternalizableId(started.getValue());
+            } catch (IllegalArgumentException e) {
+                log.info("Bad run id {}", started.getValue());
+            }
+            if (run == null || !run.isBuilding()) {
+                lost.add(started.getKey());
+            }
+        }
+        for (BuildKey buildKey : lost) {
+            log.warn("Build {} in submit group {} is neither queued nor running, forget it", buildKey, submitGroup);
+            status.forget(buildKey);
+            lostBuilds.incrementAndGet();
+        }
+        return lost.size();
+    }
+
     private String getMessage(String header, SubmitGroup submitGroup, SubmitGroupBuildStatus submitGroupStatus) {
         StringBuffer message = new StringBuffer(header).append(" for submit group ");
         message.append(submitGroup.toString()).append(":\n");
@@ -383,27 +879,92 @@ public class PluginImpl extends Plugin {
         return message.toString();
     }
 
-    private void submitReviewScore(SubmitGroup submitGroup, String message, boolean notify, int score) {
+    /**
+     * @return True if the score was posted on all changes of the submit group
+     */
+    private boolean submitReviewScore(SubmitGroup submitGroup, String message, boolean notify, int score) {
         GerritChangeFetcher fetcher = getFetcher();
-        if (fetcher != null) {
-            for (GerritChange change : submitGroup) {
-                try {
-                    fetcher.submitReviewScore(change._number, change.patchset, message.toString(), true, score);
-                } catch (RestApiException e) {
-                    log.error("Failed posting review score: {}", e);
-                }
+        if (fetcher == null) {
+            return false;
+        }
+        boolean posted = true;
+        Timer.Context timer = GerritBuilderMetrics.get().votePublish.time();
+        for (GerritChange change : submitGroup) {
+            try {
+                fetcher.submitReviewScore(change._number, change.patchset, message.toString(), true, score);
+            } catch (RestApiException e) {
+                log.error("Failed posting review score: {}", e);
+                posted = false;
             }
         }
+        timer.stop();
+        fetcher.close();
+        return posted;
     }
 
     public void onBuildCompleted(Run run) {
         log.info("onBuildCompleted {}", run);
+        GerritBuilderCause gerritBuilderCause = (GerritBuilderCause) run.getCause(GerritBuilderCause.class);
+        // Aborted builds would only make the estimates worse
+        if (gerritBuilderCause != null && run.getResult() != Result.ABORTED && run.getResult() != Result.NOT_BUILT) {
+            durationEstimator.record(run.getParent().getFullName(), gerritBuilderCause.getBuild(),
+                    gerritBuilderCause.getPredictedDuration(), run.getDuration());
+        }
         updateSubmitGroupBuildStatus(run, BuildState.COMPLETED);
+        scheduleRelease();
     }
 
     public void onBuildStarted(Run run) {
         log.info("onBuildStarted {}", run);
         updateSubmitGroupBuildStatus(run, BuildState.STARTED);
+        // The Jenkins queue got shorter
+        scheduleRelease();
+    }
+
+    /**
+     * @return Statistics about the plugin, serialized as JSON by
+     *         {@link GerritBuilderRootAction}
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("durations", durationEstimator.getStats());
+        stats.put("throttle", throttle.getStats());
+        Map<String, Object> tracking = new LinkedHashMap<String, Object>();
+        synchronized (submitGroupStatuses) {
+            tracking.put("trackedGroups", submitGroupStatuses.size());
+        }
+        tracking.put("expiredGroups", expiredGroups.get());
+        tracking.put("overflowGroups", overflowGroups.get());
+        tracking.put("lostBuilds", lostBuilds.get());
+        stats.put("tracking", tracking);
+        stats.put("staging", bundleStaging.getStats());
+        stats.put("fetch", fetchStrategyStats.getStats());
+        stats.put("mirror", mirror.getStats());
+        Map<String, Object> refresh = new LinkedHashMap<String, Object>();
+        GerritBuilderMetrics metrics = GerritBuilderMetrics.get();
+        refresh.put("webhooksReceived", metrics.webhooksReceived.getCount());
+        refresh.put("webhooksDropped", metrics.webhooksDropped.getCount());
+        refresh.put("refreshesRequested", refreshesRequested.get());
+        refresh.put("refreshesRun", refreshesRun.get());
+        refresh.put("backlog", getQueueBacklog());
+        stats.put("refresh", refresh);
+        return stats;
+    }
+
+    public RefreshTimeline getRefreshTimeline() {
+        return refreshTimeline;
+    }
+
+    public ChangeLatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    public FetchStrategyStats getFetchStrategyStats() {
+        return fetchStrategyStats;
+    }
+
+    public BundleStaging getBundleStaging() {
+        return bundleStaging;
     }
 
     public GerritChangeFetcher getFetcher() {
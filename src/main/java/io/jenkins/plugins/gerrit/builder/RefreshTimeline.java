@@ -0,0 +1,111 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The last refreshes of the open changes, each with the time spent in its
+ * phases, so that slow refreshes can be diagnosed without the logs.
+ */
+public class RefreshTimeline {
+    private static final int MAX_RECORDS = 50;
+
+    private final Deque<Record> records = new ArrayDeque<Record>();
+
+    /**
+     * A single refresh. Only used by the thread doing the refresh until it is
+     * added to the timeline.
+     */
+    public static class Record {
+        private final long started = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private long durationMillis;
+        private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+        int openChanges;
+        int submitGroups;
+        int builds;
+        int deferredGroups;
+        Map<String, Long> restCalls = Collections.emptyMap();
+        long bytesDownloaded;
+        String error;
+
+        private static class Phase {
+            // First start of the phase, relative to the start of the refresh
+            long startMillis;
+            long millis;
+            int count;
+        }
+
+        /**
+         * Add the time since start to a phase. A phase that is repeated, e.g. for
+         * each submit group, sums up the time of all repetitions.
+         *
+         * @param start The {@link System#nanoTime()} when the phase started
+         */
+        void phaseDone(String name, long start) {
+            long now = System.nanoTime();
+            Phase phase = phases.get(name);
+            if (phase == null) {
+                phase = new Phase();
+                phase.startMillis = TimeUnit.NANOSECONDS.toMillis(start - startNanos);
+                phases.put(name, phase);
+            }
+            phase.millis += TimeUnit.NANOSECONDS.toMillis(now - start);
+            phase.count++;
+        }
+
+        void done() {
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("started", started);
+            map.put("durationMillis", durationMillis);
+            Map<String, Object> phaseMap = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+                Map<String, Object> p = new LinkedHashMap<String, Object>();
+                p.put("startMillis", entry.getValue().startMillis);
+                p.put("millis", entry.getValue().millis);
+                p.put("count", entry.getValue().count);
+                phaseMap.put(entry.getKey(), p);
+            }
+            map.put("phases", phaseMap);
+            map.put("openChanges", openChanges);
+            map.put("submitGroups", submitGroups);
+            map.put("builds", builds);
+            map.put("deferredGroups", deferredGroups);
+            map.put("restCalls", restCalls);
+            map.put("bytesDownloaded", bytesDownloaded);
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+
+    public synchronized void add(Record record) {
+        record.done();
+        records.addFirst(record);
+        if (records.size() > MAX_RECORDS) {
+            records.removeLast();
+        }
+    }
+
+    /**
+     * @return The last refreshes, the latest first
+     */
+    public synchronized List<Map<String, Object>> getRecords() {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (Record record : records) {
+            result.add(record.toMap());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChange;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+
+/**
+ * An immutable copy of the tracked submit groups and their builds, served at
+ * /gerrit-builder/api/json. A new snapshot is published whenever the state
+ * changes, so reading it never takes the lock of the submit group statuses.
+ * Only the snapshots of the submit groups that changed are created again,
+ * the others are shared with the previous snapshot.
+ */
+@ExportedBean
+public class StatusSnapshot {
+    static final StatusSnapshot EMPTY = new StatusSnapshot(Collections.<SubmitGroupSnapshot>emptyList(), 0);
+
+    private final long timestamp;
+    private final int deferredGroups;
+    private final List<SubmitGroupSnapshot> submitGroups;
+
+    StatusSnapshot(Collection<SubmitGroupSnapshot> submitGroups, int deferredGroups) {
+        this.timestamp = System.currentTimeMillis();
+        this.deferredGroups = deferredGroups;
+        this.submitGroups = Collections.unmodifiableList(new ArrayList<SubmitGroupSnapshot>(submitGroups));
+    }
+
+    /**
+     * @return Time in milliseconds when the snapshot was taken
+     */
+    @Exported
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return Number of submit groups waiting for build capacity
+     */
+    @Exported
+    public int getDeferredGroups() {
+        return deferredGroups;
+    }
+
+    @Exported
+    public List<SubmitGroupSnapshot> getSubmitGroups() {
+        return submitGroups;
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class SubmitGroupSnapshot {
+        private final String name;
+        private final List<String> changes;
+        private final long created;
+        private final long lastUpdated;
+        private final List<String> triggeredBuilds;
+        private final List<String> startedBuilds;
+        private final List<String> successfulBuilds;
+        private final List<String> failedBuilds;
+        private final List<String> buildUrls;
+
+        /**
+         * Must be called with a lock held on the submit group statuses.
+         */
+        SubmitGroupSnapshot(SubmitGroup submitGroup, SubmitGroupBuildStatus status) {
+            this.name = submitGroup.toString();
+            List<String> changeList = new ArrayList<String>(submitGroup.size());
+            for (GerritChange change : submitGroup) {
+                changeList.add(change.toString());
+            }
+            this.changes = Collections.unmodifiableList(changeList);
+            this.created = status.getCreated();
+            this.lastUpdated = status.getLastUpdated();
+            this.triggeredBuilds = toStrings(status.getTriggeredBuilds());
+            this.startedBuilds = toStrings(status.getStartedBuilds().keySet());
+            this.successfulBuilds = toStrings(status.getSuccessBuilds());
+            this.failedBuilds = toStrings(status.getFailedBuilds());
+            this.buildUrls = toStrings(status.getBuildURLs());
+        }
+
+        private static List<String> toStrings(Collection<?> objects) {
+            List<String> result = new ArrayList<String>(objects.size());
+            for (Object object : objects) {
+                result.add(object.toString());
+            }
+            Collections.sort(result);
+            return Collections.unmodifiableList(result);
+        }
+
+        /**
+         * @return The changes of the submit group, e.g. "1234-2-1235-1"
+         */
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The change and patch set numbers, e.g. "1234-2"
+         */
+        @Exported
+        public List<String> getChanges() {
+            return changes;
+        }
+
+        @Exported
+        public long getCreated() {
+            return created;
+        }
+
+        @Exported
+        public long getLastUpdated() {
+            return lastUpdated;
+        }
+
+        /**
+         * @return Builds in the Jenkins queue as "job:project-branch-group"
+         */
+        @Exported
+        public List<String> getTriggeredBuilds() {
+            return triggeredBuilds;
+        }
+
+        @Exported
+        public List<String> getStartedBuilds() {
+            return startedBuilds;
+        }
+
+        @Exported
+        public List<String> getSuccessfulBuilds() {
+            return successfulBuilds;
+        }
+
+        @Exported
+        public List<String> getFailedBuilds() {
+            return failedBuilds;
+        }
+
+        @Exported
+        public List<String> getBuildUrls() {
+            return buildUrls;
+        }
+    }
+}
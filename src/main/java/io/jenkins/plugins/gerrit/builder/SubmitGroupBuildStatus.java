@@ -1,57 +1,103 @@
 package io.jenkins.plugins.gerrit.builder;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
-import io.jenkins.plugins.gerrit.builder.fetcher.Build;
-
 /**
- * A class that keep track of ongoing builds given a submit group.
+ * A class that keep track of ongoing builds given a submit group. Each build is
+ * tracked per Jenkins job building it.
  */
 public class SubmitGroupBuildStatus {
-    private Set<Build> triggeredBuilds;
-    private Set<Build> startedBuilds;
-    private Set<Build> successBuilds;
-    private Set<Build> failedBuilds;
+    private Set<BuildKey> triggeredBuilds;
+    private Set<BuildKey> startedBuilds;
+    private Set<BuildKey> successBuilds;
+    private Set<BuildKey> failedBuilds;
     private Set<String> buildURLs;
+    // Externalizable ids of started runs, used to check that they are still alive
+    private Map<BuildKey, String> runIds;
+    // Time each pending build was triggered, last seen in the Jenkins queue or
+    // started, lost builds are only forgotten some time after it
+    private Map<BuildKey, Long> pendingSince;
+    private long created;
+    private long lastUpdated;
 
     boolean voted = false;
 
     public SubmitGroupBuildStatus() {
-        triggeredBuilds = new HashSet<Build>();
-        startedBuilds = new HashSet<Build>();
-        successBuilds = new HashSet<Build>();
-        failedBuilds = new HashSet<Build>();
+        triggeredBuilds = new HashSet<BuildKey>();
+        startedBuilds = new HashSet<BuildKey>();
+        successBuilds = new HashSet<BuildKey>();
+        failedBuilds = new HashSet<BuildKey>();
         buildURLs = new HashSet<String>();
+        runIds = new HashMap<BuildKey, String>();
+        pendingSince = new HashMap<BuildKey, Long>();
+        created = System.currentTimeMillis();
+        lastUpdated = created;
     }
 
-    public boolean containsBuild(Build build) {
+    public boolean containsBuild(BuildKey build) {
         return triggeredBuilds.contains(build) || startedBuilds.contains(build) || successBuilds.contains(build)
                 || failedBuilds.contains(build);
     }
 
-    public void onTriggered(Build build) {
+    public void onTriggered(BuildKey build) {
         assert !containsBuild(build);
         triggeredBuilds.add(build);
+        lastUpdated = System.currentTimeMillis();
+        pendingSince.put(build, lastUpdated);
+    }
+
+    /**
+     * A triggered build was seen in the Jenkins queue.
+     *
+     * @param time When the queue was looked at
+     */
+    public void onQueued(BuildKey build, long time) {
+        if (triggeredBuilds.contains(build)) {
+            pendingSince.put(build, time);
+        }
     }
 
-    public void onStarted(Build build) {
+    public void onStarted(BuildKey build, String runId) {
         assert triggeredBuilds.contains(build);
         triggeredBuilds.remove(build);
         startedBuilds.add(build);
+        runIds.put(build, runId);
+        lastUpdated = System.currentTimeMillis();
+        pendingSince.put(build, lastUpdated);
     }
 
-    public void onSuccess(Build build) {
+    public void onSuccess(BuildKey build) {
         assert startedBuilds.contains(build);
         successBuilds.add(build);
         startedBuilds.remove(build);
+        runIds.remove(build);
+        pendingSince.remove(build);
+        lastUpdated = System.currentTimeMillis();
     }
 
-    public void onFailure(Build build) {
+    public void onFailure(BuildKey build) {
         assert startedBuilds.contains(build);
         failedBuilds.add(build);
         startedBuilds.remove(build);
+        runIds.remove(build);
+        pendingSince.remove(build);
+        lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget a triggered or started build that was lost, e.g. removed from the
+     * queue or killed by a controller restart, so that it can be triggered again.
+     */
+    public void forget(BuildKey build) {
+        triggeredBuilds.remove(build);
+        startedBuilds.remove(build);
+        runIds.remove(build);
+        pendingSince.remove(build);
+        lastUpdated = System.currentTimeMillis();
     }
 
     public void onVoted() {
@@ -74,6 +120,54 @@ public class SubmitGroupBuildStatus {
         return triggeredBuilds.isEmpty() && startedBuilds.isEmpty() && failedBuilds.isEmpty();
     }
 
+    /**
+     * @return Builds that are triggered or started but not yet completed
+     */
+    public Set<BuildKey> getPendingBuilds() {
+        Set<BuildKey> pending = new HashSet<BuildKey>(triggeredBuilds);
+        pending.addAll(startedBuilds);
+        return pending;
+    }
+
+    public Set<BuildKey> getTriggeredBuilds() {
+        return Collections.unmodifiableSet(triggeredBuilds);
+    }
+
+    public Set<BuildKey> getSuccessBuilds() {
+        return Collections.unmodifiableSet(successBuilds);
+    }
+
+    public Set<BuildKey> getFailedBuilds() {
+        return Collections.unmodifiableSet(failedBuilds);
+    }
+
+    /**
+     * @return Started builds mapped to the externalizable id of their run
+     */
+    public Map<BuildKey, String> getStartedBuilds() {
+        return Collections.unmodifiableMap(runIds);
+    }
+
+    /**
+     * @return Time in milliseconds when a pending build was triggered, last seen
+     *         in the Jenkins queue or started
+     */
+    public long getPendingSince(BuildKey build) {
+        Long since = pendingSince.get(build);
+        return since != null ? since : lastUpdated;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return Time in milliseconds of the last build state change
+     */
+    public long getLastUpdated() {
+        return lastUpdated;
+    }
+
     public boolean allBuildsStarted() {
         return triggeredBuilds.isEmpty();
     }
@@ -90,19 +184,19 @@ public class SubmitGroupBuildStatus {
     public String toString() {
         StringBuilder buffer = new StringBuilder();
         buffer.append("Triggered builds\n");
-        for (Build build : triggeredBuilds) {
+        for (BuildKey build : triggeredBuilds) {
             buffer.append("   ").append(build).append("\n");
         }
         buffer.append("Started builds\n");
-        for (Build build : startedBuilds) {
+        for (BuildKey build : startedBuilds) {
             buffer.append("   ").append(build).append("\n");
         }
         buffer.append("Success builds\n");
-        for (Build build : successBuilds) {
+        for (BuildKey build : successBuilds) {
             buffer.append("   ").append(build).append("\n");
         }
         buffer.append("Failed builds\n");
-        for (Build build : failedBuilds) {
+        for (BuildKey build : failedBuilds) {
             buffer.append("   ").append(build).append("\n");
         }
         return buffer.toString();
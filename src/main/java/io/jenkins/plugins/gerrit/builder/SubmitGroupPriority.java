@@ -0,0 +1,68 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChange;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
+
+/**
+ * Calculates a priority score for a submit group. A higher score means that the
+ * group is closer to being merged and its builds should reach an executor
+ * first.
+ */
+public final class SubmitGroupPriority {
+    /** All changes in the group have Code-Review+2, only Verified is missing */
+    static final int ALL_APPROVED = 1000;
+    /** Scaled with the fraction of approved changes in the group */
+    static final int PARTLY_APPROVED = 500;
+    /** The Verified vote was reset, i.e. someone asked for a rebuild */
+    static final int VERIFIED_RESET = 200;
+    /** Per hour since the newest patch set in the group was uploaded */
+    static final int PER_HOUR = 10;
+    static final int MAX_HOURS = 48;
+    /** Per change in the group, one successful build verifies all of them */
+    static final int PER_CHANGE = 5;
+    static final int MAX_CHANGES = 10;
+
+    private SubmitGroupPriority() {
+    }
+
+    /**
+     * @param submitGroup          The submit group to score
+     * @param verifiedResetChanges Change numbers that got their Verified vote
+     *                             reset since they were last built
+     * @param now                  Current time in milliseconds
+     * @return The priority, never negative
+     */
+    public static int of(SubmitGroup submitGroup, Set<Integer> verifiedResetChanges, long now) {
+        int approvedCount = 0;
+        boolean verifiedReset = false;
+        long newestUpload = 0;
+        for (GerritChange change : submitGroup) {
+            if (change.approved) {
+                approvedCount++;
+            }
+            if (verifiedResetChanges.contains(change._number)) {
+                verifiedReset = true;
+            }
+            newestUpload = Math.max(newestUpload, change.uploaded);
+        }
+
+        int priority = 0;
+        if (!submitGroup.isEmpty() && approvedCount == submitGroup.size()) {
+            priority += ALL_APPROVED;
+        } else if (approvedCount > 0) {
+            priority += PARTLY_APPROVED * approvedCount / submitGroup.size();
+        }
+        if (verifiedReset) {
+            priority += VERIFIED_RESET;
+        }
+        if (newestUpload > 0 && now > newestUpload) {
+            long hours = TimeUnit.MILLISECONDS.toHours(now - newestUpload);
+            priority += PER_HOUR * (int) Math.min(hours, MAX_HOURS);
+        }
+        priority += PER_CHANGE * Math.min(submitGroup.size(), MAX_CHANGES);
+        return priority;
+    }
+}
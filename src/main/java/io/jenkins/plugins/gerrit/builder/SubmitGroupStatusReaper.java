@@ -0,0 +1,32 @@
+package io.jenkins.plugins.gerrit.builder;
+
+import java.util.concurrent.TimeUnit;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+/**
+ * Periodically removes submit group statuses that will never complete, see
+ * {@link PluginImpl#reapSubmitGroupStatuses()}.
+ */
+@Extension
+public class SubmitGroupStatusReaper extends AsyncPeriodicWork {
+
+    public SubmitGroupStatusReaper() {
+        super("Gerrit Builder submit group status reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(5);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        PluginImpl plugin = PluginImpl.getInstance();
+        if (plugin != null) {
+            plugin.reapSubmitGroupStatuses();
+        }
+    }
+}
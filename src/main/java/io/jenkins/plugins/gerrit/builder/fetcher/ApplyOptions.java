@@ -0,0 +1,124 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * Options for applying a submit group to a workspace. Created on the controller
+ * and sent to the agent doing the checkout.
+ */
+public class ApplyOptions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String bundleCacheDirectory;
+    private long bundleCacheMaxBytes;
+    private String stagedBundle;
+    private boolean sparseSubmodules;
+    private int applyThreads;
+    private FetchStrategy fetchStrategy = FetchStrategy.SUBMIT_PREVIEW;
+    private String sharedObjectStoreDirectory;
+
+    /**
+     * @param bundleCacheDirectory Directory for the {@link BundleCache} on the
+     *                             agent, null to not cache bundles
+     * @param bundleCacheMaxBytes  Max total size of the bundle cache
+     */
+    public void setBundleCache(String bundleCacheDirectory, long bundleCacheMaxBytes) {
+        this.bundleCacheDirectory = bundleCacheDirectory;
+        this.bundleCacheMaxBytes = bundleCacheMaxBytes;
+    }
+
+    /**
+     * @param stagedBundle Path on the agent of a bundle copied from the controller,
+     *                     see {@link GerritChangeFetcher#setStagedBundle(File)}
+     */
+    public void setStagedBundle(String stagedBundle) {
+        this.stagedBundle = stagedBundle;
+    }
+
+    public String getStagedBundle() {
+        return stagedBundle;
+    }
+
+    /**
+     * @see GerritChangeFetcher#setSparseSubmodules(boolean)
+     */
+    public void setSparseSubmodules(boolean sparseSubmodules) {
+        this.sparseSubmodules = sparseSubmodules;
+    }
+
+    public boolean getSparseSubmodules() {
+        return sparseSubmodules;
+    }
+
+    /**
+     * @param applyThreads Max number of submodules applied in parallel, 0 or 1
+     *                     to apply them one at a time
+     */
+    public void setApplyThreads(int applyThreads) {
+        this.applyThreads = applyThreads;
+    }
+
+    /**
+     * @return Max number of submodules applied in parallel, 1 unless parallel
+     *         apply was configured
+     */
+    public int getApplyThreads() {
+        return Math.max(1, applyThreads);
+    }
+
+    public void setFetchStrategy(FetchStrategy fetchStrategy) {
+        this.fetchStrategy = fetchStrategy;
+    }
+
+    public FetchStrategy getFetchStrategy() {
+        return fetchStrategy;
+    }
+
+    /**
+     * @param sharedObjectStoreDirectory Directory of the {@link SharedObjectStore}
+     *                                   on the agent, null to fetch bundles into
+     *                                   each workspace
+     */
+    public void setSharedObjectStore(String sharedObjectStoreDirectory) {
+        this.sharedObjectStoreDirectory = sharedObjectStoreDirectory;
+    }
+
+    /**
+     * Must be called on the machine doing the checkout.
+     *
+     * @return The shared object store or null if not used
+     */
+    public SharedObjectStore createSharedObjectStore() {
+        if (sharedObjectStoreDirectory == null) {
+            return null;
+        }
+        return new SharedObjectStore(new File(sharedObjectStoreDirectory));
+    }
+
+    /**
+     * Configure a fetcher with these options. Must be called on the machine doing
+     * the checkout.
+     */
+    public void configure(GerritChangeFetcher fetcher) {
+        fetcher.setBundleCache(createBundleCache());
+        fetcher.setSparseSubmodules(getSparseSubmodules());
+        fetcher.setApplyThreads(getApplyThreads());
+        fetcher.setSharedObjectStore(createSharedObjectStore());
+        if (getStagedBundle() != null) {
+            fetcher.setStagedBundle(new File(getStagedBundle()));
+        }
+    }
+
+    /**
+     * Must be called on the machine doing the checkout.
+     *
+     * @return The bundle cache or null if bundles should not be cached
+     */
+    public BundleCache createBundleCache() {
+        if (bundleCacheDirectory == null || bundleCacheMaxBytes <= 0) {
+            return null;
+        }
+        return new BundleCache(new File(bundleCacheDirectory), bundleCacheMaxBytes);
+    }
+}
@@ -0,0 +1,30 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.Serializable;
+
+/**
+ * A project checked out in a directory that a submit group should be applied
+ * to, see {@link GerritChangeFetcher#prepareForBuild(java.util.List, int, int, String)}.
+ */
+public class ApplyTarget implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final String project;
+    public final String branch;
+    public final String directory;
+
+    /**
+     * @param directory Absolute path of the work tree on the machine doing the
+     *                  checkout
+     */
+    public ApplyTarget(String project, String branch, String directory) {
+        this.project = project;
+        this.branch = branch;
+        this.directory = directory;
+    }
+
+    @Override
+    public String toString() {
+        return project + "-" + branch + "@" + directory;
+    }
+}
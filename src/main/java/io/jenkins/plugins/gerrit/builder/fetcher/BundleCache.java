@@ -0,0 +1,362 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gerrit.extensions.restapi.RestApiException;
+
+/**
+ * A size bounded cache of submit preview bundles on the machine doing the
+ * checkout, so that retries and several jobs building the same submit group do
+ * not download the same bundle again.
+ *
+ * Each bundle is stored together with its SHA-256 checksum, which is verified
+ * the first time the bundle is used by this JVM and again whenever its size or
+ * checksum file changed. The least recently used bundles are removed when the
+ * cache grows above its max size.
+ *
+ * The key does not tell whether the target branches moved since the bundle was
+ * downloaded, so bundles older than the max age are downloaded again rather
+ * than reusing a stale submit preview. The cache can be used by several executors at the
+ * same time, a bundle is only downloaded once.
+ *
+ * A bundle returned by {@link #get(String, Downloader)} is pinned until
+ * {@link #release(String)} is called, and is not evicted meanwhile. Pins only
+ * protect against executors in the same JVM, other processes sharing the
+ * directory are only kept out by the lock file while a bundle is added or
+ * removed.
+ */
+public class BundleCache {
+    private static final String BUNDLE_SUFFIX = ".zip";
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    // Statistics for all caches in this JVM, i.e. for the agent
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    // FileLock does not protect against other threads in the same JVM. Keys are
+    // only in the map while they are used, the state is also the lock of the key.
+    // Keyed by the path of the bundle without suffix, as several caches may use
+    // the same file keys in different directories.
+    private static final ConcurrentHashMap<String, KeyState> keys = new ConcurrentHashMap<String, KeyState>();
+    // Bundle path to the size and checksum file time when it was last verified
+    private static final ConcurrentHashMap<String, String> verified = new ConcurrentHashMap<String, String>();
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    private static class KeyState {
+        // Threads in get() or put() plus bundles pinned by get()
+        int refs;
+    }
+
+    public interface Downloader {
+        void download(File target) throws IOException, RestApiException;
+    }
+
+    /**
+     * @param directory Directory to store the bundles in, created if missing
+     * @param maxBytes  Max total size of all bundles in the cache
+     */
+    public BundleCache(File directory, long maxBytes) {
+        this(directory, maxBytes, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param directory    Directory to store the bundles in, created if missing
+     * @param maxBytes     Max total size of all bundles in the cache
+     * @param maxAgeMillis Max time since a bundle was downloaded for it to be
+     *                     used again
+     */
+    public BundleCache(File directory, long maxBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param submitGroup The submit group as a string, or null if not known
+     * @return The key of the submit preview bundle for a change
+     */
+    public static String key(int change, int patchset, String submitGroup) {
+        String key = "" + change + "-" + patchset;
+        if (submitGroup != null) {
+            key += "_" + submitGroup;
+        }
+        return key;
+    }
+
+    private static String toFileKey(String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private String lockKey(String fileKey) {
+        return new File(directory, fileKey).getAbsolutePath();
+    }
+
+    private static KeyState acquire(String fileKey) {
+        return keys.compute(fileKey, (k, state) -> {
+            if (state == null) {
+                state = new KeyState();
+            }
+            state.refs++;
+            return state;
+        });
+    }
+
+    /**
+     * @return The state of the key, or null if it is used by someone else
+     */
+    private static KeyState acquireIfUnused(String fileKey) {
+        KeyState state = new KeyState();
+        state.refs = 1;
+        return keys.putIfAbsent(fileKey, state) == null ? state : null;
+    }
+
+    private static void releaseFileKey(String fileKey) {
+        keys.computeIfPresent(fileKey, (k, state) -> --state.refs > 0 ? state : null);
+    }
+
+    /**
+     * @return The name of the bundle file in the cache directory
+     */
+    public static String getFileName(String key) {
+        return toFileKey(key) + BUNDLE_SUFFIX;
+    }
+
+    /**
+     * Get a bundle from the cache, downloading it if it is missing or corrupt.
+     *
+     * The returned file must not be deleted by the caller, and is kept until
+     * {@link #release(String)} is called with the same key.
+     *
+     * @param key        Identifies the bundle, e.g. change, patch set and submit
+     *                   group
+     * @param downloader Used to download the bundle on a cache miss
+     * @return The bundle file
+     */
+    public File get(String key, Downloader downloader) throws IOException, RestApiException {
+        String fileKey = toFileKey(key);
+        Files.createDirectories(directory.toPath());
+        File bundle = new File(directory, fileKey + BUNDLE_SUFFIX);
+        File checksum = new File(directory, fileKey + CHECKSUM_SUFFIX);
+
+        // The reference is kept as the pin of the returned bundle
+        String lockKey = lockKey(fileKey);
+        KeyState state = acquire(lockKey);
+        boolean pinned = false;
+        try {
+            synchronized (state) {
+                File lockFile = new File(directory, fileKey + LOCK_SUFFIX);
+                try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+                    if (bundle.exists() && checksum.exists()
+                            && System.currentTimeMillis() - checksum.lastModified() <= maxAgeMillis
+                            && isValid(bundle, checksum)) {
+                        hits.incrementAndGet();
+                        // Used for LRU eviction
+                        bundle.setLastModified(System.currentTimeMillis());
+                        pinned = true;
+                        return bundle;
+                    }
+                    misses.incrementAndGet();
+                    verified.remove(bundle.getAbsolutePath());
+                    bundle.delete();
+                    checksum.delete();
+
+                    File tmp = File.createTempFile(fileKey, ".tmp", directory);
+                    try {
+                        downloader.download(tmp);
+                        Files.write(checksum.toPath(), sha256(tmp).getBytes(StandardCharsets.US_ASCII));
+                        Files.move(tmp.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                        setVerified(bundle, checksum);
+                    } finally {
+                        tmp.delete();
+                    }
+                }
+            }
+            evict();
+            pinned = true;
+            return bundle;
+        } finally {
+            if (!pinned) {
+                releaseFileKey(lockKey);
+            }
+        }
+    }
+
+    /**
+     * Unpin a bundle returned by {@link #get(String, Downloader)}, so that it can
+     * be evicted.
+     */
+    public void release(String key) {
+        releaseFileKey(lockKey(toFileKey(key)));
+    }
+
+    /**
+     * Add a bundle that was downloaded elsewhere, e.g. staged by the controller.
+     *
+     * @param key    Identifies the bundle
+     * @param source The bundle, it is moved into the cache
+     */
+    public void put(String key, File source) throws IOException {
+        String fileKey = toFileKey(key);
+        Files.createDirectories(directory.toPath());
+        File bundle = new File(directory, fileKey + BUNDLE_SUFFIX);
+        File checksum = new File(directory, fileKey + CHECKSUM_SUFFIX);
+
+        String lockKey = lockKey(fileKey);
+        KeyState state = acquire(lockKey);
+        try {
+            synchronized (state) {
+                File lockFile = new File(directory, fileKey + LOCK_SUFFIX);
+                try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+                    Files.write(checksum.toPath(), sha256(source).getBytes(StandardCharsets.US_ASCII));
+                    Files.move(source.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    setVerified(bundle, checksum);
+                }
+            }
+            // Still referenced, so the new bundle is not evicted
+            evict();
+        } finally {
+            releaseFileKey(lockKey);
+        }
+    }
+
+    /**
+     * Remove the least recently used bundles until the cache fits within its max
+     * size. Bundles that are pinned, being added or locked by another process
+     * are skipped.
+     */
+    private void evict() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(BUNDLE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        List<File> bundles = new ArrayList<File>(Arrays.asList(files));
+        Collections.sort(bundles, Comparator.comparingLong(File::lastModified));
+        for (File bundle : bundles) {
+            if (total <= maxBytes) {
+                break;
+            }
+            String name = bundle.getName();
+            String fileKey = name.substring(0, name.length() - BUNDLE_SUFFIX.length());
+            String lockKey = lockKey(fileKey);
+            KeyState state = acquireIfUnused(lockKey);
+            if (state == null) {
+                continue;
+            }
+            try {
+                synchronized (state) {
+                    File lockFile = new File(directory, fileKey + LOCK_SUFFIX);
+                    try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE); FileLock lock = channel.tryLock()) {
+                        if (lock == null) {
+                            continue;
+                        }
+                        long size = bundle.length();
+                        // A bundle being read by another process can not be deleted on
+                        // all platforms, it will be removed next time instead
+                        if (bundle.delete()) {
+                            verified.remove(bundle.getAbsolutePath());
+                            total -= size;
+                            new File(directory, fileKey + CHECKSUM_SUFFIX).delete();
+                        }
+                    } catch (IOException | OverlappingFileLockException e) {
+                        continue;
+                    }
+                }
+            } finally {
+                releaseFileKey(lockKey);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the bundle matches its checksum, only hashing the bundle if
+     *         it was not verified before with the same size and checksum file
+     */
+    private static boolean isValid(File bundle, File checksum) throws IOException {
+        if (stamp(bundle, checksum).equals(verified.get(bundle.getAbsolutePath()))) {
+            return true;
+        }
+        String expected = new String(Files.readAllBytes(checksum.toPath()), StandardCharsets.US_ASCII);
+        if (!expected.equals(sha256(bundle))) {
+            return false;
+        }
+        setVerified(bundle, checksum);
+        return true;
+    }
+
+    private static void setVerified(File bundle, File checksum) {
+        verified.put(bundle.getAbsolutePath(), stamp(bundle, checksum));
+    }
+
+    // The bundle time is updated on every hit, the checksum file is only written
+    // together with the bundle
+    private static String stamp(File bundle, File checksum) {
+        return bundle.length() + ":" + checksum.lastModified();
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Hit rate of the bundle caches in this JVM
+     */
+    public static String getStatistics() {
+        long h = hits.get();
+        long m = misses.get();
+        long rate = h + m > 0 ? 100 * h / (h + m) : 0;
+        return "hits=" + h + " misses=" + m + " hit rate=" + rate + "%";
+    }
+}
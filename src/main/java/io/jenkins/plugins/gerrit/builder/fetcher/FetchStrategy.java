@@ -0,0 +1,45 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.util.Set;
+
+import com.google.gerrit.extensions.restapi.RestApiException;
+
+/**
+ * How the changes of a submit group are brought into the workspace.
+ *
+ * A local merge of the change ref only gives the same tree as Gerrit's submit
+ * when Gerrit would merge the change too, and when the change ref does not
+ * bring in anything Gerrit would not submit with it. So {@link #DIRECT_REF} is
+ * only used for a submit group of a single change needing a single build, in
+ * a project with submit type MERGE_IF_NECESSARY or MERGE_ALWAYS, whose parent
+ * commit is already merged. Cherry-pick projects leave unmerged parents out of
+ * the submit group, and rebase and fast forward projects give a different
+ * commit, so they always use {@link #SUBMIT_PREVIEW}.
+ */
+public enum FetchStrategy {
+    /**
+     * Download the submit preview bundle zip, works for all submit groups.
+     */
+    SUBMIT_PREVIEW,
+    /**
+     * Fetch refs/changes/NN/N/P and the target branch with git and merge them
+     * locally. Only used for a single change that does not update any other
+     * project, e.g. through a superproject subscription, see above.
+     */
+    DIRECT_REF;
+
+    /**
+     * @param builds  The builds required by the submit group
+     * @param fetcher Used to look up the submit type and parent of a single
+     *                change
+     * @return The cheapest strategy that gives the same result as the submit
+     *         preview
+     */
+    public static FetchStrategy select(SubmitGroup submitGroup, Set<Build> builds, GerritChangeFetcher fetcher)
+            throws RestApiException {
+        if (submitGroup.size() == 1 && builds.size() == 1 && fetcher.canMergeLocally(submitGroup.first())) {
+            return DIRECT_REF;
+        }
+        return SUBMIT_PREVIEW;
+    }
+}
@@ -0,0 +1,26 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+/**
+ * Notified about the Gerrit REST calls made by a {@link GerritChangeFetcher},
+ * e.g. to collect metrics on the controller.
+ */
+public interface FetcherListener {
+    /**
+     * @param endpoint      Name of the REST endpoint, e.g. "query" or
+     *                      "submitPreview"
+     * @param durationNanos Time the call took
+     * @param success       false if the call failed
+     */
+    void onRestCall(String endpoint, long durationNanos, boolean success);
+
+    /**
+     * Called on the applying thread when a phase of applying a submit group to a
+     * workspace is done, e.g. to measure each phase in a benchmark.
+     *
+     * @param phase         One of the GerritChangeFetcher.PHASE_* names
+     * @param project       The project or submodule the phase was run for
+     * @param durationNanos Time the phase took
+     */
+    default void onApplyPhase(String phase, String project, long durationNanos) {
+    }
+}
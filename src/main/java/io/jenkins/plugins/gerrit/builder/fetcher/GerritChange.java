@@ -4,6 +4,7 @@ import java.util.Objects;
 
 import com.google.gerrit.extensions.common.ChangeInfo;
 import com.google.gerrit.extensions.common.LabelInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
 
 /**
  * This class represents a gerrit change
@@ -12,13 +13,20 @@ public class GerritChange implements Comparable<GerritChange> {
     public int _number;
     public int patchset;
     public String id;
+    public String project;
+    public String branch;
     public String subject;
     public boolean tested;
+    public boolean approved;
+    public long uploaded;
 
     public GerritChange(ChangeInfo changeInfo) {
         this._number = changeInfo._number;
-        this.patchset = changeInfo.revisions.get(changeInfo.currentRevision)._number;
+        RevisionInfo currentRevision = changeInfo.revisions.get(changeInfo.currentRevision);
+        this.patchset = currentRevision._number;
         this.id = changeInfo.id;
+        this.project = changeInfo.project;
+        this.branch = changeInfo.branch;
         this.subject = changeInfo.subject;
 
         // TODO this should be customizable, not everyone uses "Verified"
@@ -28,6 +36,16 @@ public class GerritChange implements Comparable<GerritChange> {
         } else {
             this.tested = false;
         }
+
+        LabelInfo codeReview = changeInfo.labels.get("Code-Review");
+        this.approved = codeReview != null && codeReview.approved != null;
+
+        // Time when the current patch set was uploaded, used to age waiting builds
+        if (currentRevision.created != null) {
+            this.uploaded = currentRevision.created.getTime();
+        } else if (changeInfo.created != null) {
+            this.uploaded = changeInfo.created.getTime();
+        }
     }
 
     @Override
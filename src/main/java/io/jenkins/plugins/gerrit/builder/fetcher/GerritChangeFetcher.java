@@ -1,11 +1,9 @@
 package io.jenkins.plugins.gerrit.builder.fetcher;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
@@ -18,48 +16,93 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.ResetCommand.ResetType;
-import org.eclipse.jgit.api.errors.CheckoutConflictException;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.InvalidRefNameException;
 import org.eclipse.jgit.api.errors.InvalidRemoteException;
-import org.eclipse.jgit.api.errors.RefAlreadyExistsException;
-import org.eclipse.jgit.api.errors.RefNotFoundException;
 import org.eclipse.jgit.api.errors.TransportException;
 import org.eclipse.jgit.errors.ConfigInvalidException;
-import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.eclipse.jgit.submodule.SubmoduleWalk.IgnoreSubmoduleMode;
+import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.RefSpec;
-import org.eclipse.jgit.transport.TransportBundleStream;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.eclipse.jgit.util.FS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.api.changes.Changes;
 import com.google.gerrit.extensions.api.changes.NotifyHandling;
 import com.google.gerrit.extensions.api.changes.ReviewInput;
 import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.client.SubmitType;
 import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.CommitInfo;
 import com.google.gerrit.extensions.restapi.BinaryResult;
 import com.google.gerrit.extensions.restapi.RestApiException;
 
+import io.jenkins.plugins.gerrit.builder.jfr.BundleDownloadEvent;
+import io.jenkins.plugins.gerrit.builder.jfr.BundleOpenEvent;
+import io.jenkins.plugins.gerrit.builder.jfr.JfrEvents;
+import io.jenkins.plugins.gerrit.builder.jfr.RestCallEvent;
+
 public class GerritChangeFetcher {
     private static final String GERRIT_META_SUFFIX = "/meta";
     private GerritApi gerritApi;
     private Path tmpPath;
     private PrintStream printStream;
+    private BundleCache bundleCache;
+    private File stagedBundle;
+    private boolean sparseSubmodules;
+    private int applyThreads = 1;
+    private SharedObjectStore sharedObjectStore;
+    private String gitUrl;
+    private FetcherListener listener;
+    private CredentialsProvider gitCredentials;
+    private int openChangesMaxAgeDays = 7;
+    private int openChangesPageSize = 100;
+    private int maxOpenChanges = 5000;
+    // REST calls made and submit preview bytes downloaded by this fetcher
+    private final Map<String, Long> restCallCounts = new TreeMap<String, Long>();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    // Names of the REST endpoints reported to the FetcherListener
+    public static final String ENDPOINT_QUERY = "query";
+    public static final String ENDPOINT_SUBMITTED_TOGETHER = "submittedTogether";
+    public static final String ENDPOINT_SUBMIT_PREVIEW = "submitPreview";
+    public static final String ENDPOINT_REVIEW = "review";
+    public static final String ENDPOINT_SUBMIT_TYPE = "submitType";
+
+    // Phases of applying a submit group reported to the FetcherListener
+    public static final String PHASE_BUNDLE = "bundle";
+    public static final String PHASE_FETCH = "fetch";
+    public static final String PHASE_CHECKOUT = "checkout";
+    public static final String PHASE_RESET = "reset";
+    public static final String PHASE_SUBMODULE_UPDATE = "submoduleUpdate";
+
+    // Where the change and branch are fetched to by a direct fetch
+    private static final String DIRECT_FETCH_REFS = "refs/gerrit-builder/";
 
     private static final Logger log = LoggerFactory.getLogger(GerritChangeFetcher.class);
 
@@ -74,8 +117,136 @@ public class GerritChangeFetcher {
     public GerritChangeFetcher(GerritApi gerritApi, PrintStream printStream) throws IOException {
         this.printStream = printStream;
         this.gerritApi = gerritApi;
-        this.tmpPath = Files.createTempDirectory("bundles");
-        log("Storing change bundles in temporary directory " + tmpPath);
+    }
+
+    /**
+     * Use a cache for downloaded bundles instead of a temporary directory.
+     *
+     * @param bundleCache The cache, or null to not cache bundles
+     */
+    public void setBundleCache(BundleCache bundleCache) {
+        this.bundleCache = bundleCache;
+    }
+
+    /**
+     * Use a bundle that was already downloaded, e.g. staged by the controller while
+     * the build was waiting in the queue, instead of downloading it.
+     *
+     * @param stagedBundle The bundle zip, it is moved into the bundle cache or
+     *                     deleted when used
+     */
+    public void setStagedBundle(File stagedBundle) {
+        this.stagedBundle = stagedBundle;
+    }
+
+    /**
+     * Only descend into submodules that are part of the bundle. Other submodules
+     * are left alone, or updated if their gitlink moved, instead of running a
+     * full submodule update in every project.
+     */
+    public void setSparseSubmodules(boolean sparseSubmodules) {
+        this.sparseSubmodules = sparseSubmodules;
+    }
+
+    /**
+     * Store the objects of applied bundles in a shared repository used as
+     * alternates, instead of in each workspace.
+     *
+     * @param sharedObjectStore The store, or null to fetch into each workspace
+     */
+    public void setSharedObjectStore(SharedObjectStore sharedObjectStore) {
+        this.sharedObjectStore = sharedObjectStore;
+    }
+
+    /**
+     * @param listener Notified about REST calls, or null
+     */
+    public void setListener(FetcherListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return Number of REST calls made by this fetcher per endpoint
+     */
+    public Map<String, Long> getRestCallCounts() {
+        synchronized (restCallCounts) {
+            return new TreeMap<String, Long>(restCallCounts);
+        }
+    }
+
+    /**
+     * @return Total size of the submit previews downloaded by this fetcher
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    /**
+     * Needed to fetch changes directly with git, see
+     * {@link FetchStrategy#DIRECT_REF}.
+     *
+     * @param url      The Gerrit server URL, projects are fetched from
+     *                 url/a/project
+     * @param username HTTP username
+     * @param password HTTP password
+     */
+    public void setGitCredentials(String url, String username, String password) {
+        this.gitUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.gitCredentials = new UsernamePasswordCredentialsProvider(username, password);
+    }
+
+    /**
+     * @param maxAgeDays Only open changes updated within this many days are
+     *                   fetched, 0 means no limit
+     * @param pageSize   Number of open changes fetched per REST call, 0 uses the
+     *                   query limit of the Gerrit user
+     * @param maxChanges Max number of open changes fetched per refresh, 0 means
+     *                   no limit
+     */
+    public void setOpenChangesQuery(int maxAgeDays, int pageSize, int maxChanges) {
+        this.openChangesMaxAgeDays = maxAgeDays;
+        this.openChangesPageSize = pageSize;
+        this.maxOpenChanges = maxChanges;
+    }
+
+    /**
+     * @param applyThreads Max number of submodules to apply in parallel, 1 to
+     *                     apply them one at a time
+     */
+    public void setApplyThreads(int applyThreads) {
+        this.applyThreads = applyThreads;
+    }
+
+    /**
+     * @return A pool for a single prepareForBuild call, or null to apply
+     *         submodules one at a time
+     */
+    private ForkJoinPool createApplyPool() {
+        return applyThreads > 1 ? new ForkJoinPool(applyThreads) : null;
+    }
+
+    private synchronized Path getTmpPath() throws IOException {
+        if (tmpPath == null) {
+            tmpPath = Files.createTempDirectory("bundles");
+            log("Storing change bundles in temporary directory " + tmpPath);
+        }
+        return tmpPath;
+    }
+
+    /**
+     * Remove the temporary directory used for bundles not stored in a cache.
+     */
+    public synchronized void close() {
+        if (tmpPath != null) {
+            File[] files = tmpPath.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            tmpPath.toFile().delete();
+            tmpPath = null;
+        }
     }
 
     private static Set<GerritChange> changesToSet(List<ChangeInfo> changes) {
@@ -86,11 +257,94 @@ public class GerritChangeFetcher {
         return setChanges;
     }
 
+    /**
+     * Receives the open changes a page at a time, see
+     * {@link GerritChangeFetcher#getOpenChanges(OpenChangesHandler)}.
+     */
+    public interface OpenChangesHandler {
+        void onPage(Set<GerritChange> changes) throws RestApiException;
+    }
+
     public Set<GerritChange> getOpenChanges() throws RestApiException {
-        // Limit search to open changes and 1 week old, max 100
-        List<ChangeInfo> changes = gerritApi.changes().query("status%3Aopen%20-age%3A1w").withLimit(100)
-                .withOptions(ListChangesOption.CURRENT_REVISION, ListChangesOption.LABELS).get();
-        return changesToSet(changes);
+        final Set<GerritChange> openChanges = new HashSet<GerritChange>();
+        getOpenChanges(new OpenChangesHandler() {
+            @Override
+            public void onPage(Set<GerritChange> changes) {
+                openChanges.addAll(changes);
+            }
+        });
+        return openChanges;
+    }
+
+    /**
+     * Fetch the open changes page by page, at most the configured max number of
+     * open changes. Gerrit returns the most recently updated changes first, so
+     * the changes left out are the ones updated longest ago. Changes updated while
+     * paging may move between pages, so a change can be passed twice or missed
+     * until the next refresh.
+     *
+     * @param handler Called with each page before the next one is fetched
+     * @return Number of changes fetched
+     */
+    public int getOpenChanges(OpenChangesHandler handler) throws RestApiException {
+        String query = "status%3Aopen";
+        if (openChangesMaxAgeDays > 0) {
+            query += "%20-age%3A" + openChangesMaxAgeDays + "d";
+        }
+        int fetched = 0;
+        boolean moreChanges = true;
+        while (moreChanges) {
+            long start = System.nanoTime();
+            RestCallEvent event = JfrEvents.beginRestCall(ENDPOINT_QUERY, 0, 0);
+            List<ChangeInfo> changes = null;
+            try {
+                Changes.QueryRequest request = gerritApi.changes().query(query).withStart(fetched)
+                        .withOptions(ListChangesOption.CURRENT_REVISION, ListChangesOption.LABELS);
+                int limit = openChangesPageSize;
+                if (maxOpenChanges > 0 && (limit <= 0 || limit > maxOpenChanges - fetched)) {
+                    limit = maxOpenChanges - fetched;
+                }
+                if (limit > 0) {
+                    request.withLimit(limit);
+                }
+                changes = request.get();
+            } finally {
+                restCallDone(ENDPOINT_QUERY, start, event, changes);
+            }
+            // Gerrit flags the last change of a page if there are more
+            moreChanges = !changes.isEmpty() && Boolean.TRUE.equals(changes.get(changes.size() - 1)._moreChanges);
+            fetched += changes.size();
+            handler.onPage(changesToSet(changes));
+            if (moreChanges && maxOpenChanges > 0 && fetched >= maxOpenChanges) {
+                log.warn("Only the {} most recently updated open changes are built", fetched);
+                moreChanges = false;
+            }
+        }
+        return fetched;
+    }
+
+    private void restCallDone(String endpoint, long start, boolean success) {
+        synchronized (restCallCounts) {
+            Long count = restCallCounts.get(endpoint);
+            restCallCounts.put(endpoint, count != null ? count + 1 : 1);
+        }
+        if (listener != null) {
+            listener.onRestCall(endpoint, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * @param changes The changes returned by the call, null if it failed
+     */
+    private void restCallDone(String endpoint, long start, RestCallEvent event, List<ChangeInfo> changes) {
+        JfrEvents.end(event, changes != null ? changes.size() : 0, changes != null);
+        restCallDone(endpoint, start, changes != null);
+    }
+
+    private void phaseDone(String phase, String project, long start) {
+        if (listener != null) {
+            listener.onApplyPhase(phase, project, System.nanoTime() - start);
+        }
     }
 
     private SubmitGroup getSubmitGroup(GerritChange change) throws RestApiException {
@@ -103,14 +357,28 @@ public class GerritChangeFetcher {
         // SubmittedTogetherInfo togetherChanges =
         // gerritApi.changes().id(change.id).submittedTogether(listOptions,
         // submittedTogetherOptions);
-        List<ChangeInfo> togetherChanges = gerritApi.changes().id(change.id).submittedTogether();
+        long start = System.nanoTime();
+        RestCallEvent event = JfrEvents.beginRestCall(ENDPOINT_SUBMITTED_TOGETHER, change._number, change.patchset);
+        List<ChangeInfo> togetherChanges = null;
+        try {
+            togetherChanges = gerritApi.changes().id(change.id).submittedTogether();
+        } finally {
+            restCallDone(ENDPOINT_SUBMITTED_TOGETHER, start, event, togetherChanges);
+        }
         // We need to use the query interface to get the labels and current revision for
         // now
         List<ChangeInfo> togetherChangesFixed = new ArrayList<ChangeInfo>();
         for (ChangeInfo changeInfo : togetherChanges) {
-            List<ChangeInfo> changes = gerritApi.changes().query("change:" + changeInfo._number)
-                    .withOptions(ListChangesOption.CURRENT_REVISION, ListChangesOption.LABELS).get();
-            togetherChangesFixed.add(changes.get(0));
+            start = System.nanoTime();
+            event = JfrEvents.beginRestCall(ENDPOINT_QUERY, changeInfo._number, 0);
+            List<ChangeInfo> changes = null;
+            try {
+                changes = gerritApi.changes().query("change:" + changeInfo._number)
+                        .withOptions(ListChangesOption.CURRENT_REVISION, ListChangesOption.LABELS).get();
+                togetherChangesFixed.add(changes.get(0));
+            } finally {
+                restCallDone(ENDPOINT_QUERY, start, event, changes);
+            }
         }
         SubmitGroup submitGroup = new SubmitGroup(togetherChangesFixed);
         // Special case if no other changes are submitted together
@@ -121,6 +389,59 @@ public class GerritChangeFetcher {
         return submitGroup;
     }
 
+    /**
+     * Check if merging the change ref locally gives the same result as
+     * submitting the change, see {@link FetchStrategy}.
+     *
+     * @return true if the project merges changes and the parent of the current
+     *         patch set is already merged
+     */
+    public boolean canMergeLocally(GerritChange change) throws RestApiException {
+        long start = System.nanoTime();
+        RestCallEvent event = JfrEvents.beginRestCall(ENDPOINT_SUBMIT_TYPE, change._number, change.patchset);
+        SubmitType submitType = null;
+        try {
+            submitType = gerritApi.changes().id(change._number).revision(change.patchset).submitType();
+        } finally {
+            JfrEvents.end(event, 0, submitType != null);
+            restCallDone(ENDPOINT_SUBMIT_TYPE, start, submitType != null);
+        }
+        if (submitType != SubmitType.MERGE_IF_NECESSARY && submitType != SubmitType.MERGE_ALWAYS) {
+            return false;
+        }
+
+        start = System.nanoTime();
+        event = JfrEvents.beginRestCall(ENDPOINT_QUERY, change._number, change.patchset);
+        List<ChangeInfo> changes = null;
+        try {
+            changes = gerritApi.changes().query("change:" + change._number)
+                    .withOptions(ListChangesOption.CURRENT_REVISION, ListChangesOption.CURRENT_COMMIT).get();
+        } finally {
+            restCallDone(ENDPOINT_QUERY, start, event, changes);
+        }
+        if (changes.isEmpty()) {
+            return false;
+        }
+        ChangeInfo changeInfo = changes.get(0);
+        CommitInfo commit = changeInfo.revisions.get(changeInfo.currentRevision).commit;
+        if (commit == null || commit.parents == null || commit.parents.size() != 1) {
+            return false;
+        }
+
+        // A parent pushed directly to the branch is not found, the submit
+        // preview is used for it too
+        start = System.nanoTime();
+        event = JfrEvents.beginRestCall(ENDPOINT_QUERY, change._number, change.patchset);
+        List<ChangeInfo> parents = null;
+        try {
+            parents = gerritApi.changes().query("commit:" + commit.parents.get(0).commit + " project:"
+                    + change.project + " branch:" + change.branch + " status:merged").get();
+        } finally {
+            restCallDone(ENDPOINT_QUERY, start, event, parents);
+        }
+        return !parents.isEmpty();
+    }
+
     public void printSubmitGroup(SubmitGroup submitGroup) {
         log("Submit group: with following items:");
         for (GerritChange change : submitGroup) {
@@ -139,38 +460,34 @@ public class GerritChangeFetcher {
      * @throws RestApiException
      */
     public AbstractMap<String, SubmitGroup> getSubmitGroups(Set<GerritChange> openChanges) throws RestApiException {
-        List<SubmitGroup> submitGroups = new ArrayList<SubmitGroup>();
-
-        for (GerritChange change : openChanges) {
-            submitGroups.add(getSubmitGroup(change));
-        }
+        SubmitGroupReducer reducer = new SubmitGroupReducer();
+        addSubmitGroups(openChanges, reducer);
+        return reducer.getSubmitGroups();
+    }
 
-        // Go though list of set and remove changes already included in other sets
-        // leaving the submitGroups as small as possible
-        for (int i = 0; i < submitGroups.size() - 1; i++) {
-            SubmitGroup currentSubmitGroup = submitGroups.get(i);
-            for (int j = i + 1; j < submitGroups.size(); j++) {
-                SubmitGroup followingSubmitGroup = submitGroups.get(j);
-                if (followingSubmitGroup.containsAll(currentSubmitGroup)) {
-                    for (GerritChange change : currentSubmitGroup) {
-                        followingSubmitGroup.remove(change);
-                    }
-                } else if (currentSubmitGroup.containsAll(followingSubmitGroup)) {
-                    for (GerritChange change : followingSubmitGroup) {
-                        currentSubmitGroup.remove(change);
-                    }
-                }
-            }
+    /**
+     * Add the submit group of each change to a reducer, e.g. for each page of
+     * open changes, so the groups are reduced as they are fetched.
+     */
+    public void addSubmitGroups(Set<GerritChange> changes, SubmitGroupReducer reducer) throws RestApiException {
+        for (GerritChange change : changes) {
+            reducer.add(getSubmitGroup(change));
         }
+    }
 
-        // Remove empty groups and groups where all changes are already tested
-        submitGroups.removeIf(submitGroup -> submitGroup.isEmpty() || submitGroup.allTested());
-
-        HashMap<String, SubmitGroup> result = new HashMap<String, SubmitGroup>();
+    /**
+     * Remove the changes of each submit group from the larger groups containing
+     * it, and drop the groups left empty or already tested.
+     *
+     * @param submitGroups The submit group of each open change, modified
+     * @return The remaining submit groups by name
+     */
+    public static AbstractMap<String, SubmitGroup> reduceSubmitGroups(List<SubmitGroup> submitGroups) {
+        SubmitGroupReducer reducer = new SubmitGroupReducer();
         for (SubmitGroup submitGroup : submitGroups) {
-            result.put(submitGroup.toString(), submitGroup);
+            reducer.add(submitGroup);
         }
-        return result;
+        return reducer.getSubmitGroups();
     }
 
     public Set<Build> getRequiredBuilds(SubmitGroup submitGroup) throws IOException, RestApiException {
@@ -178,19 +495,23 @@ public class GerritChangeFetcher {
         // built
         Set<Build> builds = new HashSet<Build>();
 
-        BundleReader bundleReader = new BundleReader(submitGroup);
-        Set<String> projects = bundleReader.getProjectNames();
-
-        for (String project : projects) {
-            Collection<GitRef> refs = findRefs(bundleReader.getInputStream(project));
+        BundleReader bundleReader = openBundle(submitGroup.first()._number, submitGroup.first().patchset, null);
+        try {
+            for (String project : bundleReader.getProjectNames()) {
+                Collection<GitRef> refs;
+                try (InputStream in = bundleReader.getInputStream(project)) {
+                    refs = findRefs(in);
+                }
 
-            for (GitRef gitRef : refs) {
-                // gitRef here is "refs/heads/<BRANCH>" we remove the "refs/heads/" part
-                String branch = gitRef.name.split("refs/heads/")[1];
-                builds.add(new Build(submitGroup, project, branch));
+                for (GitRef gitRef : refs) {
+                    // gitRef here is "refs/heads/<BRANCH>" we remove the "refs/heads/" part
+                    String branch = gitRef.name.split("refs/heads/")[1];
+                    builds.add(new Build(submitGroup, project, branch));
+                }
             }
+        } finally {
+            bundleReader.close();
         }
-        bundleReader.close();
         return builds;
     }
 
@@ -203,67 +524,115 @@ public class GerritChangeFetcher {
      * @throws IOException
      */
     protected static Collection<GitRef> findRefs(InputStream bundle) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(bundle));
-
-        /* String gitVersion = */ in.readLine();
+        ArrayList<GitRef> branches = new ArrayList<GitRef>();
+        for (GitRef gitRef : GitBundle.read(bundle).getRefs()) {
+            if (!gitRef.name.endsWith(GERRIT_META_SUFFIX)) {
+                branches.add(gitRef);
+            }
+        }
+        return branches;
+    }
 
-        String line = in.readLine();
-        while (!line.equals("") && line != null && line.startsWith("-")) {
-            // String requires = line.substring(1);
-            line = in.readLine();
+    /**
+     * Download the submit preview bundle zip for a change.
+     *
+     * @param number   Change number
+     * @param patchSet Patch set number
+     * @param target   File to write the zip file to
+     */
+    public void downloadBundle(int number, int patchSet, File target) throws RestApiException, IOException {
+        long start = System.nanoTime();
+        BundleDownloadEvent event = JfrEvents.beginBundleDownload(number, patchSet);
+        boolean success = false;
+        try {
+            BinaryResult binary = gerritApi.changes().id(number).revision(patchSet).submitPreview("zip");
+            try (FileOutputStream fs = new FileOutputStream(target)) {
+                binary.writeTo(fs);
+            }
+            success = true;
+            bytesDownloaded.addAndGet(target.length());
+        } finally {
+            JfrEvents.end(event, target.length(), success);
+            restCallDone(ENDPOINT_SUBMIT_PREVIEW, start, success);
         }
+    }
 
-        ArrayList<GitRef> branches = new ArrayList<GitRef>();
-        while (!line.equals("") && line != null) {
-            String sha1AndBranch[] = line.split(" ");
-            String sha1 = sha1AndBranch[0];
-            String branch = sha1AndBranch[1];
-            if (!branch.endsWith(GERRIT_META_SUFFIX)) {
-                branches.add(new GitRef(branch, sha1));
+    /**
+     * Open the submit preview bundle for a change, from the bundle cache if
+     * available.
+     *
+     * @param cacheKey Key in the bundle cache, or null to bypass the cache
+     */
+    private BundleReader openBundle(final int number, final int patchSet, String cacheKey)
+            throws RestApiException, IOException {
+        if (stagedBundle != null) {
+            File staged = stagedBundle;
+            stagedBundle = null;
+            if (bundleCache != null && cacheKey != null) {
+                bundleCache.put(cacheKey, staged);
+            } else {
+                log("Using staged bundle " + staged);
+                return new BundleReader(staged, true);
             }
-            line = in.readLine();
         }
-        return branches;
+        if (bundleCache != null && cacheKey != null) {
+            File zipFile = bundleCache.get(cacheKey, new BundleCache.Downloader() {
+                @Override
+                public void download(File target) throws IOException, RestApiException {
+                    log("Bundle " + number + "-" + patchSet + " not cached, downloading");
+                    downloadBundle(number, patchSet, target);
+                }
+            });
+            log("Bundle cache: " + BundleCache.getStatistics());
+            try {
+                return new BundleReader(zipFile, cacheKey);
+            } catch (IOException | RuntimeException e) {
+                bundleCache.release(cacheKey);
+                throw e;
+            }
+        }
+        File zipFile = new File(getTmpPath().toFile(), "" + number + "-" + patchSet + ".zip");
+        downloadBundle(number, patchSet, zipFile);
+        return new BundleReader(zipFile, true);
     }
 
     class BundleReader {
         private ZipFile zip;
         private Set<String> projectNames;
-        private HashMap<String, InputStream> inputStreams;
+        private HashMap<String, ZipEntry> zipEntries;
         File zipFile;
+        // Temporary files are deleted on close, cached ones are kept
+        private boolean temporary;
+        // Key of a cached bundle, it is released on close
+        private String cacheKey;
 
-        public BundleReader(int number, int patchSet) throws RestApiException, IOException {
-            inputStreams = new HashMap<String, InputStream>();
-
-            String fileName = "" + number + "-" + patchSet + ".zip";
-            BinaryResult binary = gerritApi.changes().id(number).revision(patchSet).submitPreview("zip");
-            zipFile = new File(tmpPath.toFile(), fileName);
-            FileOutputStream fs = new FileOutputStream(zipFile);
-            binary.writeTo(fs);
-
-            readZipFile();
+        public BundleReader(File zipFile, boolean temporary) throws IOException {
+            this.temporary = temporary;
+            open(zipFile);
         }
 
-        public BundleReader(SubmitGroup submitGroup) throws RestApiException, IOException {
-            this(submitGroup.first()._number, submitGroup.first().patchset);
+        /**
+         * Read a bundle pinned in the bundle cache.
+         */
+        public BundleReader(File zipFile, String cacheKey) throws IOException {
+            this.cacheKey = cacheKey;
+            open(zipFile);
         }
 
-        private void readZipFile() throws IOException {
-            if (zip != null) {
-                // Close the previous session which means all InputStreams are closed
-                close();
-            }
-            projectNames = new HashSet<String>();
+        private void open(File zipFile) throws IOException {
+            zipEntries = new HashMap<String, ZipEntry>();
+            this.zipFile = zipFile;
+
+            BundleOpenEvent event = JfrEvents.beginBundleOpen(zipFile.getName());
             zip = new ZipFile(zipFile);
             Enumeration<? extends ZipEntry> entries = zip.entries();
             while (entries.hasMoreElements()) {
                 ZipEntry zipEntry = entries.nextElement();
                 String projectName = zipEntry.getName().split("\\.git")[0];
-                projectNames.add(projectName);
-                InputStream stream = zip.getInputStream(zipEntry);
-                inputStreams.put(projectName, stream);
+                zipEntries.put(projectName, zipEntry);
             }
-            projectNames = Collections.unmodifiableSet(projectNames);
+            projectNames = Collections.unmodifiableSet(new HashSet<String>(zipEntries.keySet()));
+            JfrEvents.end(event, projectNames.size(), zipFile.length());
         }
 
         public void close() {
@@ -272,7 +641,13 @@ public class GerritChangeFetcher {
             } catch (IOException e) {
                 // Ignore
             }
-            zipFile.delete();
+            if (temporary) {
+                zipFile.delete();
+            }
+            if (cacheKey != null) {
+                bundleCache.release(cacheKey);
+                cacheKey = null;
+            }
         }
 
         public Set<String> getProjectNames() {
@@ -280,37 +655,29 @@ public class GerritChangeFetcher {
         }
 
         /**
-         * Only one InputStream must be used at the same time
-         * 
+         * Open a new InputStream for the bundle of a project. Can be called several
+         * times for the same project and from several threads at the same time.
+         *
          * @param projectName
-         * @return
+         * @return The InputStream or null if the project is not part of the bundle
          * @throws IOException
          */
         public InputStream getInputStream(String projectName) throws IOException {
-            // An InputStream can only be read once, so remove it when used and reopen
-            // the zip file again if needed.
-            if (projectNames.contains(projectName)) {
-                if (!inputStreams.containsKey(projectName)) {
-                    // Project input stream was already used, read the zip file again
-                    readZipFile();
-                }
-                return inputStreams.remove(projectName);
+            ZipEntry zipEntry = zipEntries.get(projectName);
+            if (zipEntry != null) {
+                return zip.getInputStream(zipEntry);
             } else {
                 return null;
             }
         }
     }
 
-    private void fetchFromBundle(Repository repo, InputStream bundle, String branch) throws URISyntaxException,
-            NotSupportedException, org.eclipse.jgit.errors.TransportException, RefAlreadyExistsException,
-            RefNotFoundException, InvalidRefNameException, CheckoutConflictException, GitAPIException {
-        final RefSpec rs = new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*");
-        final Set<RefSpec> refs = Collections.singleton(rs);
-        final URIish uri = new URIish("in-memory://");
-
-        TransportBundleStream trans = new TransportBundleStream(repo, uri, bundle);
-        trans.fetch(NullProgressMonitor.INSTANCE, refs);
-        trans.close();
+    /**
+     * Parse the pack of a bundle into the repository and update the branch, other
+     * branches in the bundle are not touched.
+     */
+    private void fetchFromBundle(Repository repo, InputStream in, String branch) throws IOException {
+        GitBundle.read(in).apply(repo, Constants.R_HEADS + branch, Constants.R_HEADS + branch);
     }
 
     private class SubmoduleInfo {
@@ -354,25 +721,191 @@ public class GerritChangeFetcher {
     public void prepareForBuild(File gitDir, String project, String branch, int changeNumber, int patchset)
             throws IOException, InvalidRemoteException, TransportException, GitAPIException, URISyntaxException,
             ConfigInvalidException, RestApiException {
+        prepareForBuild(gitDir, project, branch, changeNumber, patchset, null);
+    }
+
+    /**
+     * @param submitGroup The submit group as a string, used together with the
+     *                    change and patch set as key in the bundle cache. Can be
+     *                    null if not known.
+     */
+    public void prepareForBuild(File gitDir, String project, String branch, int changeNumber, int patchset,
+            String submitGroup) throws IOException, InvalidRemoteException, TransportException, GitAPIException,
+            URISyntaxException, ConfigInvalidException, RestApiException {
+        prepareForBuild(gitDir, project, branch, changeNumber, patchset, submitGroup, FetchStrategy.SUBMIT_PREVIEW);
+    }
+
+    /**
+     * @param fetchStrategy How to fetch the changes, falls back to the submit
+     *                      preview if a direct fetch fails
+     * @return The strategy that was used
+     */
+    public FetchStrategy prepareForBuild(File gitDir, String project, String branch, int changeNumber, int patchset,
+            String submitGroup, FetchStrategy fetchStrategy) throws IOException, InvalidRemoteException,
+            TransportException, GitAPIException, URISyntaxException, ConfigInvalidException, RestApiException {
+        if (fetchStrategy == FetchStrategy.DIRECT_REF) {
+            if (gitUrl == null) {
+                log("No git URL configured, using submit preview");
+            } else {
+                FileRepositoryBuilder builder = new FileRepositoryBuilder();
+                Repository repo = builder.readEnvironment() // scan environment GIT_* variables
+                        .setWorkTree(gitDir).setMustExist(true).readEnvironment().build();
+                try {
+                    fetchChangeRef(repo, project, branch, changeNumber, patchset);
+                    return FetchStrategy.DIRECT_REF;
+                } catch (IOException | GitAPIException | URISyntaxException e) {
+                    log("Direct fetch of change " + changeNumber + " failed, using submit preview: " + e);
+                } finally {
+                    repo.close();
+                }
+            }
+        }
+
         FileRepositoryBuilder builder = new FileRepositoryBuilder();
         Repository repo = builder.readEnvironment() // scan environment GIT_* variables
                 .setWorkTree(gitDir).setMustExist(true).readEnvironment().build();
-        BundleReader bundleReader = new BundleReader(changeNumber, patchset);
+        long start = System.nanoTime();
+        BundleReader bundleReader = openBundle(changeNumber, patchset,
+                BundleCache.key(changeNumber, patchset, submitGroup));
+        phaseDone(PHASE_BUNDLE, project, start);
+        ForkJoinPool applyPool = createApplyPool();
+        try {
+            applySubmitGroup(repo, project, branch, bundleReader, applyPool);
+        } finally {
+            if (applyPool != null) {
+                applyPool.shutdown();
+            }
+            bundleReader.close();
+            repo.close();
+        }
+        return FetchStrategy.SUBMIT_PREVIEW;
+    }
 
-        applySubmitGroup(repo, project, branch, bundleReader);
+    /**
+     * Apply the submit group to several projects checked out side by side, e.g.
+     * by a pipeline. The bundle is only downloaded once and the projects are
+     * applied in parallel, on up to one thread per processor, whatever the
+     * number of threads for submodules is.
+     *
+     * @param submitGroup The submit group as a string, see
+     *                    {@link #prepareForBuild(File, String, String, int, int, String)}
+     */
+    public void prepareForBuild(List<ApplyTarget> targets, int changeNumber, int patchset, String submitGroup)
+            throws IOException, GitAPIException, URISyntaxException, ConfigInvalidException, RestApiException {
+        long start = System.nanoTime();
+        BundleReader bundleReader = openBundle(changeNumber, patchset,
+                BundleCache.key(changeNumber, patchset, submitGroup));
+        phaseDone(PHASE_BUNDLE, null, start);
+        ForkJoinPool applyPool = createApplyPool();
+        ForkJoinPool targetPool = targets.size() > 1
+                ? new ForkJoinPool(Math.min(targets.size(), Runtime.getRuntime().availableProcessors()))
+                : null;
+        try {
+            List<ProjectApplier> appliers = new ArrayList<ProjectApplier>();
+            try {
+                for (ApplyTarget target : targets) {
+                    Repository repo = new FileRepositoryBuilder().readEnvironment()
+                            .setWorkTree(new File(target.directory)).setMustExist(true).build();
+                    appliers.add(new ProjectApplier(repo, target.project, target.branch,
+                            "Project " + target.project + " in " + target.directory, bundleReader, applyPool));
+                }
+            } catch (IOException e) {
+                // Otherwise the repositories are closed by the appliers once they have run
+                for (ProjectApplier applier : appliers) {
+                    applier.repo.close();
+                }
+                throw e;
+            }
+            applyInParallel(appliers, targetPool);
+        } finally {
+            if (targetPool != null) {
+                targetPool.shutdown();
+            }
+            if (applyPool != null) {
+                applyPool.shutdown();
+            }
+            bundleReader.close();
+        }
     }
 
-    private void applySubmitGroup(Repository repo, String projectName, String branch, BundleReader bundleReader)
-            throws IOException, InvalidRemoteException, TransportException, GitAPIException, URISyntaxException,
-            ConfigInvalidException {
+    /**
+     * Fetch a change and its target branch directly with git and merge them
+     * locally, instead of downloading a submit preview. Only gives the same
+     * result as the submit preview for a single change that does not update any
+     * other project.
+     */
+    private void fetchChangeRef(Repository repo, String project, String branch, int changeNumber, int patchset)
+            throws IOException, GitAPIException, URISyntaxException {
+        long start = System.currentTimeMillis();
+        Git git = new Git(repo);
+        String changeRef = String.format("refs/changes/%02d/%d/%d", changeNumber % 100, changeNumber, patchset);
+        String localChangeRef = DIRECT_FETCH_REFS + "change";
+        String localBranchRef = DIRECT_FETCH_REFS + "branch";
+        URIish uri = new URIish(gitUrl + "/a/" + project);
+
+        git.fetch().setRemote(uri.toString()).setCredentialsProvider(gitCredentials)
+                .setRefSpecs(new RefSpec("+" + changeRef + ":" + localChangeRef),
+                        new RefSpec("+" + Constants.R_HEADS + branch + ":" + localBranchRef))
+                .call();
+        ObjectId changeId = repo.resolve(localChangeRef);
+        ObjectId branchId = repo.resolve(localBranchRef);
+        if (changeId == null || branchId == null) {
+            throw new IOException("Could not fetch " + changeRef + " and " + branch + " from " + uri);
+        }
+
+        // Move the local branch to the fetched branch, detach first since the
+        // branch may be checked out
+        git.checkout().setName(branchId.name()).setForced(true).call();
+        RefUpdate update = repo.updateRef(Constants.R_HEADS + branch);
+        update.setNewObjectId(branchId);
+        update.forceUpdate();
+        git.checkout().setName(branch).call();
+
+        MergeResult result = git.merge().include(changeId).setCommit(true)
+                .setMessage("Merge change " + changeNumber + "," + patchset).call();
+        if (!result.getMergeStatus().isSuccessful()) {
+            git.reset().setMode(ResetType.HARD).setRef(branchId.name()).call();
+            throw new IOException("Merge of change " + changeNumber + " failed: " + result.getMergeStatus());
+        }
+        log("Fetched " + changeRef + " and merged it into " + branch + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        if (sparseSubmodules) {
+            // Only submodules whose gitlink was changed by the change
+            SubmoduleWalk walk = SubmoduleWalk.forIndex(repo);
+            try {
+                while (walk.next()) {
+                    if (!walk.getObjectId().equals(walk.getHead())) {
+                        git.submoduleUpdate().addPath(walk.getPath()).call();
+                    }
+                }
+            } finally {
+                walk.close();
+            }
+        } else {
+            git.submoduleUpdate().call();
+        }
+    }
+
+    /**
+     * @param applyPool Pool to apply submodules in parallel in, or null to apply
+     *                  them one at a time
+     * @return true if the project and all its submodules were already up to
+     *         date, so nothing was changed
+     */
+    private boolean applySubmitGroup(Repository repo, String projectName, String branch, BundleReader bundleReader,
+            ForkJoinPool applyPool) throws IOException, InvalidRemoteException, TransportException, GitAPIException,
+            URISyntaxException, ConfigInvalidException {
 
         Git git = new Git(repo);
 
         // Fetch the bundle if this project was part of the bundle zip
+        boolean upToDate;
         if (bundleReader.getProjectNames().contains(projectName)) {
-            fetchFromBundle(repo, bundleReader.getInputStream(projectName), branch);
-            git.checkout().setName(branch).call();
-            git.reset().setMode(ResetType.HARD).call();
+            upToDate = applyProject(git, projectName, branch, bundleReader);
+        } else {
+            // Only moved by the final submodule update of the parent project
+            upToDate = !git.status().setIgnoreSubmodules(IgnoreSubmoduleMode.ALL).call().hasUncommittedChanges();
         }
 
         // Figure out which branch and which bundle InputStream we should use for each
@@ -390,25 +923,252 @@ public class GerritChangeFetcher {
             submoduleInfos.put(submoduleInfo.path, submoduleInfo);
         }
 
-        // Recursively update all submodules in this project
+        // Recursively update all submodules in this project. The submodules are
+        // independent of each other so they are applied in parallel.
+        List<ProjectApplier> appliers = new ArrayList<ProjectApplier>();
         SubmoduleWalk walk = SubmoduleWalk.forIndex(repo);
         while (walk.next()) {
+            String name = walk.getModuleName();
+            SubmoduleInfo submoduleInfo = submoduleInfos.get(name);
+
+            if (sparseSubmodules && submoduleInfo != null
+                    && !bundleReader.getProjectNames().contains(submoduleInfo.url)) {
+                // Updates the index and config of this repository, so not in parallel
+                upToDate &= updateSubmoduleIfMoved(git, walk, submoduleInfo, bundleReader, applyPool);
+                continue;
+            }
+            if (!walk.getObjectId().equals(walk.getHead())) {
+                // Not at the revision recorded in this project
+                upToDate = false;
+            }
+
             Repository submoduleRepo = walk.getRepository();
             if (submoduleRepo == null) {
                 throw new ConfigInvalidException("null repo, add \"Advanced sub-modules behaviours\" "
                         + "and check \"Recursively update submodules\"");
             }
-            String name = walk.getModuleName();
-            SubmoduleInfo submoduleInfo = submoduleInfos.get(name);
+            appliers.add(new ProjectApplier(submoduleRepo, submoduleInfo.url, submoduleInfo.branch,
+                    "Submodule " + submoduleInfo.path, bundleReader, applyPool));
+        }
+        walk.close();
+        upToDate &= applyInParallel(appliers, applyPool);
 
-            applySubmitGroup(submoduleRepo, submoduleInfo.url, submoduleInfo.branch, bundleReader);
-            submoduleRepo.close();
+        if (!sparseSubmodules && !upToDate) {
+            // Do a final submodule update to make sure that all projects points
+            // to correct SHA1. This takes care of the case where a submodule was dirty
+            // but did not contain any changes in this bundle. Skipped when nothing
+            // was changed, e.g. when a build is retriggered in the same workspace.
+            long start = System.nanoTime();
+            git.submoduleUpdate().call();
+            phaseDone(PHASE_SUBMODULE_UPDATE, projectName, start);
         }
-        // Do a final submodule update to make sure that all projects points
-        // to correct SHA1. This takes care of the case where a submodule was dirty
-        // but did not contain any changes in this bundle.
-        git.submoduleUpdate().call();
         git.close();
+        return upToDate;
+    }
+
+    /**
+     * Fetch, checkout and reset the branch of a project to the revision in the
+     * bundle. Steps that would not change anything, e.g. when a build is
+     * retriggered in the same workspace, are skipped.
+     *
+     * @return true if the project was already checked out at the revision
+     */
+    private boolean applyProject(Git git, String projectName, String branch, BundleReader bundleReader)
+            throws IOException, GitAPIException {
+        Repository repo = git.getRepository();
+        long start = System.currentTimeMillis();
+        long phaseStart = System.nanoTime();
+
+        ObjectId target = getBundleRevision(bundleReader, projectName, branch);
+        if (target != null && isCheckedOut(git, branch, target)) {
+            log("Skipped " + projectName + ", already at " + target.name());
+            return true;
+        }
+
+        Ref localBranch = repo.exactRef(Constants.R_HEADS + branch);
+        if (target != null && localBranch != null && target.equals(localBranch.getObjectId())) {
+            log("Branch " + branch + " of " + projectName + " already at " + target.name() + ", skipping fetch");
+        } else if (sharedObjectStore != null && target != null) {
+            // Store the objects once on the machine and only update the branch here
+            sharedObjectStore.addAlternate(repo);
+            boolean imported;
+            try (InputStream in = bundleReader.getInputStream(projectName)) {
+                imported = sharedObjectStore.importBundle(repo, projectName, branch, target, in);
+            }
+            RefUpdate update = repo.updateRef(Constants.R_HEADS + branch);
+            update.setNewObjectId(target);
+            update.forceUpdate();
+            log((imported ? "Imported " : "Reused ") + projectName + " in the shared object store, "
+                    + SharedObjectStore.getStatistics());
+        } else {
+            try (InputStream in = bundleReader.getInputStream(projectName)) {
+                fetchFromBundle(repo, in, branch);
+            }
+        }
+        phaseDone(PHASE_FETCH, projectName, phaseStart);
+        phaseStart = System.nanoTime();
+        git.checkout().setName(branch).call();
+        phaseDone(PHASE_CHECKOUT, projectName, phaseStart);
+        phaseStart = System.nanoTime();
+        git.reset().setMode(ResetType.HARD).call();
+        phaseDone(PHASE_RESET, projectName, phaseStart);
+        log("Applied " + projectName + " in " + (System.currentTimeMillis() - start) + " ms");
+        return false;
+    }
+
+    /**
+     * @return The revision of a branch in the bundle header, or null if the
+     *         branch is not part of the bundle
+     */
+    private static ObjectId getBundleRevision(BundleReader bundleReader, String projectName, String branch)
+            throws IOException {
+        try (InputStream in = bundleReader.getInputStream(projectName)) {
+            for (GitRef gitRef : findRefs(in)) {
+                if (gitRef.name.equals(Constants.R_HEADS + branch)) {
+                    return ObjectId.fromString(gitRef.revision);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the branch, or a detached HEAD as left by a submodule
+     *         update, is checked out at the given revision without any local
+     *         modifications of tracked files
+     */
+    private static boolean isCheckedOut(Git git, String branch, ObjectId revision)
+            throws IOException, GitAPIException {
+        Repository repo = git.getRepository();
+        String fullBranch = repo.getFullBranch();
+        boolean detached = fullBranch != null && ObjectId.isId(fullBranch);
+        if (!detached && !(Constants.R_HEADS + branch).equals(fullBranch)) {
+            return false;
+        }
+        if (!revision.equals(repo.resolve(Constants.HEAD))) {
+            return false;
+        }
+        // Submodules are handled separately, and untracked files are not touched by
+        // a reset either
+        return !git.status().setIgnoreSubmodules(IgnoreSubmoduleMode.ALL).call().hasUncommittedChanges();
+    }
+
+    /**
+     * Applies the submit group to a project, and recursively its submodules, as
+     * part of a fork join pool.
+     */
+    private class ProjectApplier extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient Repository repo;
+        private final transient String projectName;
+        private final transient String branch;
+        private final transient String description;
+        private final transient BundleReader bundleReader;
+        private final transient ForkJoinPool applyPool;
+        // Checked exceptions can not be thrown from compute()
+        private transient Exception failure;
+        private transient boolean upToDate;
+
+        /**
+         * @param description Used in the log, e.g. the submodule path
+         */
+        ProjectApplier(Repository repo, String projectName, String branch, String description,
+                BundleReader bundleReader, ForkJoinPool applyPool) {
+            this.repo = repo;
+            this.projectName = projectName;
+            this.branch = branch;
+            this.description = description;
+            this.bundleReader = bundleReader;
+            this.applyPool = applyPool;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.currentTimeMillis();
+            try {
+                upToDate = applySubmitGroup(repo, projectName, branch, bundleReader, applyPool);
+                log(description + " done in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException | GitAPIException | URISyntaxException | ConfigInvalidException
+                    | RuntimeException e) {
+                failure = e;
+            } finally {
+                repo.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if all projects were already up to date
+     */
+    private boolean applyInParallel(final List<ProjectApplier> appliers, ForkJoinPool applyPool)
+            throws IOException, GitAPIException, URISyntaxException, ConfigInvalidException {
+        if (appliers.isEmpty()) {
+            return true;
+        }
+        if (applyPool == null || appliers.size() == 1) {
+            for (ProjectApplier applier : appliers) {
+                applier.compute();
+            }
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            // Nested submodules, already running in the pool
+            ForkJoinTask.invokeAll(appliers);
+        } else {
+            applyPool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(appliers);
+                }
+            });
+        }
+
+        boolean upToDate = true;
+        for (ProjectApplier applier : appliers) {
+            upToDate &= applier.upToDate;
+            Exception e = applier.failure;
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof GitAPIException) {
+                throw (GitAPIException) e;
+            } else if (e instanceof URISyntaxException) {
+                throw (URISyntaxException) e;
+            } else if (e instanceof ConfigInvalidException) {
+                throw (ConfigInvalidException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+        }
+        return upToDate;
+    }
+
+    /**
+     * Used for submodules not part of the bundle when only touching submodules
+     * that are needed. The submodule is left alone unless its gitlink in the
+     * parent project no longer matches its HEAD.
+     *
+     * @return true if the submodule was left alone
+     */
+    private boolean updateSubmoduleIfMoved(Git git, SubmoduleWalk walk, SubmoduleInfo submoduleInfo,
+            BundleReader bundleReader, ForkJoinPool applyPool) throws IOException, InvalidRemoteException,
+            TransportException, GitAPIException, URISyntaxException, ConfigInvalidException {
+        ObjectId head = walk.getHead();
+        if (walk.getObjectId().equals(head)) {
+            log("Submodule " + walk.getPath() + " not in bundle and up to date, skipping");
+            return true;
+        }
+        log("Submodule " + walk.getPath() + " not in bundle but moved, updating it");
+        long start = System.nanoTime();
+        git.submoduleUpdate().addPath(walk.getPath()).call();
+        phaseDone(PHASE_SUBMODULE_UPDATE, submoduleInfo.url, start);
+
+        // Nested submodules may have moved as well
+        Repository submoduleRepo = walk.getRepository();
+        if (submoduleRepo != null) {
+            applySubmitGroup(submoduleRepo, submoduleInfo.url, submoduleInfo.branch, bundleReader, applyPool);
+            submoduleRepo.close();
+        }
+        return false;
     }
 
     public void submitReviewScore(int changeNumber, int patchset, String message, boolean notify, int score)
@@ -419,6 +1179,15 @@ public class GerritChangeFetcher {
         } else {
             reviewInput.notify = NotifyHandling.NONE;
         }
-        gerritApi.changes().id(changeNumber).revision(patchset).review(reviewInput);
+        long start = System.nanoTime();
+        RestCallEvent event = JfrEvents.beginRestCall(ENDPOINT_REVIEW, changeNumber, patchset);
+        boolean success = false;
+        try {
+            gerritApi.changes().id(changeNumber).revision(patchset).review(reviewInput);
+            success = true;
+        } finally {
+            JfrEvents.end(event, 0, success);
+            restCallDone(ENDPOINT_REVIEW, start, success);
+        }
     }
 }
@@ -0,0 +1,158 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.errors.MissingBundlePrerequisiteException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * A git bundle read from a stream, e.g. a zip entry of a submit preview.
+ *
+ * Only the header is read up front. The pack is then parsed straight from the
+ * stream into the object database, and only the requested ref is updated.
+ * Compared to fetching with TransportBundleStream no tracking refs are
+ * updated for the other branches in the bundle.
+ */
+public class GitBundle {
+    private static final String V2_SIGNATURE = "# v2 git bundle";
+    private static final String V3_SIGNATURE = "# v3 git bundle";
+
+    private final InputStream in;
+    private final Map<ObjectId, String> prerequisites = new LinkedHashMap<ObjectId, String>();
+    private final List<GitRef> refs = new ArrayList<GitRef>();
+
+    private GitBundle(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the header of a bundle, the stream is left at the start of the pack.
+     */
+    public static GitBundle read(InputStream in) throws IOException {
+        GitBundle bundle = new GitBundle(in);
+        String signature = readLine(in);
+        if (!signature.equals(V2_SIGNATURE) && !signature.equals(V3_SIGNATURE)) {
+            throw new IOException("Not a git bundle: " + signature);
+        }
+        String line = readLine(in);
+        while (!line.isEmpty()) {
+            if (line.startsWith("-")) {
+                // "-<sha1> <comment>", the comment is optional
+                int space = line.indexOf(' ');
+                String sha1 = space > 0 ? line.substring(1, space) : line.substring(1);
+                String comment = space > 0 ? line.substring(space + 1) : "";
+                bundle.prerequisites.put(ObjectId.fromString(sha1), comment);
+            } else if (!line.startsWith("@")) {
+                // "<sha1> <ref>", v3 capabilities starting with "@" are ignored
+                String sha1AndRef[] = line.split(" ", 2);
+                bundle.refs.add(new GitRef(sha1AndRef[1], sha1AndRef[0]));
+            }
+            line = readLine(in);
+        }
+        return bundle;
+    }
+
+    /**
+     * Read one header line a byte at a time, so that nothing after the header is
+     * consumed from the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Truncated git bundle header");
+            }
+            line.write(c);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public List<GitRef> getRefs() {
+        return Collections.unmodifiableList(refs);
+    }
+
+    /**
+     * @return The revision of a ref in the bundle, or null if not part of it
+     */
+    public ObjectId getRevision(String refName) {
+        for (GitRef ref : refs) {
+            if (ref.name.equals(refName)) {
+                return ObjectId.fromString(ref.revision);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The prerequisite commits of the bundle that the repository does
+     *         not have, mapped to their comment
+     */
+    public Map<ObjectId, String> getMissingPrerequisites(Repository repo) throws IOException {
+        ObjectDatabase objectDatabase = repo.getObjectDatabase();
+        Map<ObjectId, String> missing = new LinkedHashMap<ObjectId, String>();
+        for (Map.Entry<ObjectId, String> prerequisite : prerequisites.entrySet()) {
+            if (!objectDatabase.has(prerequisite.getKey())) {
+                missing.put(prerequisite.getKey(), prerequisite.getValue());
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Parse the pack into the object database of a repository and point a ref at
+     * the revision of one of the refs in the bundle.
+     *
+     * @param bundleRef The ref in the bundle, e.g. refs/heads/master
+     * @param localRef  The ref to update in the repository
+     * @return The new revision of the local ref
+     */
+    public ObjectId apply(Repository repo, String bundleRef, String localRef) throws IOException {
+        ObjectId revision = getRevision(bundleRef);
+        if (revision == null) {
+            throw new IOException(bundleRef + " is not part of the bundle");
+        }
+
+        Map<ObjectId, String> missing = getMissingPrerequisites(repo);
+        if (!missing.isEmpty()) {
+            throw new MissingBundlePrerequisiteException(new URIish().setPath(bundleRef), missing);
+        }
+
+        // Thin packs are completed with the bases from the repository
+        try (ObjectInserter inserter = repo.newObjectInserter()) {
+            PackParser parser = inserter.newPackParser(in);
+            parser.setAllowThin(true);
+            parser.parse(NullProgressMonitor.INSTANCE);
+            inserter.flush();
+        }
+
+        RefUpdate update = repo.updateRef(localRef);
+        update.setNewObjectId(revision);
+        RefUpdate.Result result = update.forceUpdate();
+        switch (result) {
+        case NEW:
+        case FORCED:
+        case FAST_FORWARD:
+        case NO_CHANGE:
+            return revision;
+        default:
+            throw new IOException("Could not update " + localRef + ": " + result);
+        }
+    }
+}
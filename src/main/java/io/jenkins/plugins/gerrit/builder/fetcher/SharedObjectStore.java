@@ -0,0 +1,121 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * A bare repository on the machine doing the checkout that is used as
+ * alternates by all workspaces. The objects of each bundle are stored there
+ * once instead of in every workspace.
+ *
+ * The imported branches are kept under refs/gerrit-builder/PROJECT/ so that
+ * the objects stay reachable. The repository must never be pruned since the
+ * workspaces refer to its objects.
+ *
+ * The store is not complete on its own. The bundles are thin, so the history
+ * of an imported branch, and the trees and blobs it did not change, are only
+ * in the workspace that imported it. A workspace reusing an imported branch
+ * must have the prerequisites of the bundle itself.
+ */
+public class SharedObjectStore {
+    private static final String REFS = "refs/gerrit-builder/";
+
+    // Statistics for all stores in this JVM, i.e. for the agent
+    private static final AtomicLong imported = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+    // Imports of the same project write the same refs
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    private final File directory;
+
+    /**
+     * @param directory Directory of the bare repository, created if missing
+     */
+    public SharedObjectStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param workspace Repository whose objects are also used, but not
+     *                  persistently, e.g. for the prerequisites of a bundle
+     */
+    private Repository open(Repository workspace) throws IOException {
+        Object lock = locks.computeIfAbsent(directory.getAbsolutePath(), k -> new Object());
+        synchronized (lock) {
+            Repository repo = new FileRepositoryBuilder().setGitDir(directory).setBare()
+                    .addAlternateObjectDirectory(new File(workspace.getDirectory(), "objects")).build();
+            if (!repo.getObjectDatabase().exists()) {
+                repo.create(true);
+            }
+            return repo;
+        }
+    }
+
+    /**
+     * Import a branch from a bundle, unless the store already has its objects
+     * and the workspace has the prerequisites of the bundle. The prerequisites
+     * are found in the workspace, which already has the history of the branch.
+     *
+     * @param workspace The repository the bundle is applied to
+     * @param revision  The revision of the branch in the bundle
+     * @return true if the bundle was imported
+     */
+    public boolean importBundle(Repository workspace, String project, String branch, ObjectId revision,
+            InputStream bundle) throws IOException {
+        Object lock = locks.computeIfAbsent(directory.getAbsolutePath() + ":" + project, k -> new Object());
+        synchronized (lock) {
+            try (Repository repo = open(workspace)) {
+                GitBundle gitBundle = GitBundle.read(bundle);
+                // Imported from another workspace, whose history this workspace may
+                // lack. Otherwise imported again, which fails if it does lack it.
+                if (repo.getObjectDatabase().has(revision) && gitBundle.getMissingPrerequisites(repo).isEmpty()) {
+                    reused.incrementAndGet();
+                    return false;
+                }
+                gitBundle.apply(repo, Constants.R_HEADS + branch,
+                        REFS + project + "/" + Constants.R_HEADS + branch);
+                imported.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Let a repository use the objects of the store, if it does not already.
+     */
+    public void addAlternate(Repository repo) throws IOException {
+        File alternates = new File(repo.getDirectory(), "objects/info/alternates");
+        String objects = new File(directory, "objects").getAbsolutePath();
+        if (alternates.exists()) {
+            List<String> lines = Files.readAllLines(alternates.toPath(), StandardCharsets.UTF_8);
+            if (lines.contains(objects)) {
+                return;
+            }
+        }
+        Files.createDirectories(alternates.getParentFile().toPath());
+        Files.write(alternates.toPath(), Collections.singletonList(objects), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        // The alternates are read once, closing makes them be read again on next use
+        repo.getObjectDatabase().close();
+    }
+
+    /**
+     * @return Number of bundles imported and reused by the stores in this JVM
+     */
+    public static String getStatistics() {
+        return "imported=" + imported.get() + " reused=" + reused.get();
+    }
+}
@@ -1,5 +1,7 @@
 package io.jenkins.plugins.gerrit.builder.fetcher;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.TreeSet;
 
@@ -11,11 +13,28 @@ import com.google.gerrit.extensions.common.ChangeInfo;
  */
 public class SubmitGroup extends TreeSet<GerritChange> {
     private static final long serialVersionUID = 1L;
+    // All changes submitted together, also the ones later removed since they are
+    // part of a smaller submit group
+    private List<GerritChange> submittedTogether;
 
     public SubmitGroup(List<ChangeInfo> changes) {
         for (ChangeInfo change : changes) {
             add(new GerritChange(change));
         }
+        submittedTogether = new ArrayList<GerritChange>(this);
+    }
+
+    /**
+     * @return All changes that are submitted together with this group, i.e. part
+     *         of its submit preview
+     */
+    public List<GerritChange> getSubmittedTogether() {
+        // A change not submitted together with any other change is added after
+        // construction
+        if (submittedTogether == null || submittedTogether.isEmpty()) {
+            return new ArrayList<GerritChange>(this);
+        }
+        return Collections.unmodifiableList(submittedTogether);
     }
 
     public boolean allTested() {
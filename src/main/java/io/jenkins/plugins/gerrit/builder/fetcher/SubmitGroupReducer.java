@@ -0,0 +1,102 @@
+package io.jenkins.plugins.gerrit.builder.fetcher;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces submit groups as they are added, e.g. a page of open changes at a
+ * time. When a submit group contains another one, the changes of the smaller
+ * group are removed from the larger one, leaving the submit groups as small as
+ * possible.
+ *
+ * Each change is indexed to the groups containing it, so a group is only
+ * compared with the groups it overlaps and not with all groups added before it.
+ */
+public class SubmitGroupReducer {
+    private final List<SubmitGroup> submitGroups = new ArrayList<SubmitGroup>();
+    // Groups containing each change. Groups are compared by identity since their
+    // hash code changes when changes are removed from them.
+    private final Map<GerritChange, List<SubmitGroup>> groupsByChange = new HashMap<GerritChange, List<SubmitGroup>>();
+
+    /**
+     * @param submitGroup The submit group of an open change, modified by later
+     *                    calls
+     */
+    public void add(SubmitGroup submitGroup) {
+        List<SubmitGroup> overlapping = new ArrayList<SubmitGroup>();
+        for (GerritChange change : submitGroup) {
+            List<SubmitGroup> groups = groupsByChange.get(change);
+            if (groups != null) {
+                for (SubmitGroup group : groups) {
+                    if (!containsSame(overlapping, group)) {
+                        overlapping.add(group);
+                    }
+                }
+            }
+        }
+
+        for (SubmitGroup group : overlapping) {
+            if (submitGroup.containsAll(group)) {
+                for (GerritChange change : group) {
+                    submitGroup.remove(change);
+                }
+            } else if (group.containsAll(submitGroup)) {
+                for (GerritChange change : submitGroup) {
+                    group.remove(change);
+                    List<SubmitGroup> groups = groupsByChange.get(change);
+                    removeSame(groups, group);
+                    if (groups.isEmpty()) {
+                        groupsByChange.remove(change);
+                    }
+                }
+            }
+        }
+
+        if (!submitGroup.isEmpty()) {
+            submitGroups.add(submitGroup);
+            for (GerritChange change : submitGroup) {
+                List<SubmitGroup> groups = groupsByChange.get(change);
+                if (groups == null) {
+                    groups = new ArrayList<SubmitGroup>(1);
+                    groupsByChange.put(change, groups);
+                }
+                groups.add(submitGroup);
+            }
+        }
+    }
+
+    /**
+     * @return The reduced submit groups by name, without the groups left empty or
+     *         already tested
+     */
+    public AbstractMap<String, SubmitGroup> getSubmitGroups() {
+        HashMap<String, SubmitGroup> result = new HashMap<String, SubmitGroup>();
+        for (SubmitGroup submitGroup : submitGroups) {
+            if (!submitGroup.isEmpty() && !submitGroup.allTested()) {
+                result.put(submitGroup.toString(), submitGroup);
+            }
+        }
+        return result;
+    }
+
+    private static boolean containsSame(List<SubmitGroup> groups, SubmitGroup submitGroup) {
+        for (SubmitGroup group : groups) {
+            if (group == submitGroup) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void removeSame(List<SubmitGroup> groups, SubmitGroup submitGroup) {
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i) == submitGroup) {
+                groups.remove(i);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Download of a submit preview, see {@link JfrEvents#beginBundleDownload}.
+ */
+public interface BundleDownloadEvent {
+    void done(long bytes, boolean success);
+}
@@ -0,0 +1,9 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Reading the zip directory of a submit preview, see
+ * {@link JfrEvents#beginBundleOpen}.
+ */
+public interface BundleOpenEvent {
+    void done(int projects, long bytes);
+}
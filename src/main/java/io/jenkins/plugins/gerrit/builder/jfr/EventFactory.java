@@ -0,0 +1,19 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Creates the Flight Recorder events, implemented in src/main/java11 since
+ * jdk.jfr is not part of the Java 8 API. The begin methods return null if the
+ * event is not enabled.
+ */
+interface EventFactory {
+    RestCallEvent beginRestCall(String endpoint, int changeNumber, int patchset);
+
+    BundleDownloadEvent beginBundleDownload(int changeNumber, int patchset);
+
+    BundleOpenEvent beginBundleOpen(String file);
+
+    JobMatchEvent beginJobMatch(int changeNumber, int groupSize, int builds, int jobs);
+
+    ScheduleBuildEvent beginScheduleBuild(String job, String project, String branch, int changeNumber,
+            int groupSize);
+}
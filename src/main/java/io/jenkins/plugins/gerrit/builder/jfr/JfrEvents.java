@@ -0,0 +1,85 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Creates the JDK Flight Recorder events of the plugin.
+ *
+ * The begin methods return null when the JVM has no Flight Recorder, or when
+ * the event is not enabled in any running recording, so the cost is a null
+ * check when nothing is recorded. The events extend jdk.jfr.Event, which is not
+ * part of the Java 8 API, so they are compiled from src/main/java11 only when
+ * building with JDK 11 or later, and loaded here by name. The plugin still
+ * loads on JVMs without Flight Recorder, or when built without the events.
+ */
+public final class JfrEvents {
+    private static final EventFactory FACTORY = createFactory();
+
+    private JfrEvents() {
+    }
+
+    private static EventFactory createFactory() {
+        try {
+            Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+            if (!(Boolean) flightRecorder.getMethod("isAvailable").invoke(null)) {
+                return null;
+            }
+            return (EventFactory) Class.forName(JfrEvents.class.getPackage().getName() + ".EventFactoryImpl")
+                    .getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public static RestCallEvent beginRestCall(String endpoint, int changeNumber, int patchset) {
+        return FACTORY != null ? FACTORY.beginRestCall(endpoint, changeNumber, patchset) : null;
+    }
+
+    /**
+     * @param results Number of changes returned by the call
+     */
+    public static void end(RestCallEvent event, int results, boolean success) {
+        if (event != null) {
+            event.done(results, success);
+        }
+    }
+
+    public static BundleDownloadEvent beginBundleDownload(int changeNumber, int patchset) {
+        return FACTORY != null ? FACTORY.beginBundleDownload(changeNumber, patchset) : null;
+    }
+
+    public static void end(BundleDownloadEvent event, long bytes, boolean success) {
+        if (event != null) {
+            event.done(bytes, success);
+        }
+    }
+
+    public static BundleOpenEvent beginBundleOpen(String file) {
+        return FACTORY != null ? FACTORY.beginBundleOpen(file) : null;
+    }
+
+    public static void end(BundleOpenEvent event, int projects, long bytes) {
+        if (event != null) {
+            event.done(projects, bytes);
+        }
+    }
+
+    public static JobMatchEvent beginJobMatch(int changeNumber, int groupSize, int builds, int jobs) {
+        return FACTORY != null ? FACTORY.beginJobMatch(changeNumber, groupSize, builds, jobs) : null;
+    }
+
+    public static void end(JobMatchEvent event, int matchedJobs) {
+        if (event != null) {
+            event.done(matchedJobs);
+        }
+    }
+
+    public static ScheduleBuildEvent beginScheduleBuild(String job, String project, String branch,
+            int changeNumber, int groupSize) {
+        return FACTORY != null ? FACTORY.beginScheduleBuild(job, project, branch, changeNumber, groupSize) : null;
+    }
+
+    public static void end(ScheduleBuildEvent event) {
+        if (event != null) {
+            event.done();
+        }
+    }
+}
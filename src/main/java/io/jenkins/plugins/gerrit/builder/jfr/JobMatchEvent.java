@@ -0,0 +1,8 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Finding the jobs of a submit group, see {@link JfrEvents#beginJobMatch}.
+ */
+public interface JobMatchEvent {
+    void done(int matchedJobs);
+}
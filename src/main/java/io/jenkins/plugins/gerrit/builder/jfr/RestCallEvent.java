@@ -0,0 +1,11 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * A call to the Gerrit REST API, see {@link JfrEvents#beginRestCall}.
+ */
+public interface RestCallEvent {
+    /**
+     * @param results Number of changes returned by the call
+     */
+    void done(int results, boolean success);
+}
@@ -0,0 +1,9 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Putting a build in the Jenkins queue, see
+ * {@link JfrEvents#beginScheduleBuild}.
+ */
+public interface ScheduleBuildEvent {
+    void done();
+}
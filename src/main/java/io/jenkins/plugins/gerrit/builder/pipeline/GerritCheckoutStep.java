@@ -0,0 +1,190 @@
+package io.jenkins.plugins.gerrit.builder.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.gerrit.extensions.restapi.RestApiException;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import io.jenkins.plugins.gerrit.builder.ApiHelper;
+import io.jenkins.plugins.gerrit.builder.Configuration;
+import io.jenkins.plugins.gerrit.builder.GerritBuilderCause;
+import io.jenkins.plugins.gerrit.builder.PluginImpl;
+import io.jenkins.plugins.gerrit.builder.fetcher.ApplyOptions;
+import io.jenkins.plugins.gerrit.builder.fetcher.ApplyTarget;
+import io.jenkins.plugins.gerrit.builder.fetcher.FetchStrategy;
+import io.jenkins.plugins.gerrit.builder.fetcher.GerritChangeFetcher;
+import io.jenkins.plugins.gerrit.builder.scm.GerritBuilderExtension;
+
+/**
+ * Applies the submit group of the build to several projects checked out side
+ * by side in the workspace, e.g.
+ *
+ * <pre>
+ * gerritCheckout targets: [[project: 'main', dir: 'main'], [project: 'lib', dir: 'lib']]
+ * </pre>
+ *
+ * The projects must already be checked out. The bundle is only downloaded once
+ * and the projects are applied in parallel on the agent.
+ */
+public class GerritCheckoutStep extends Step {
+    private final List<GerritCheckoutTarget> targets;
+
+    @DataBoundConstructor
+    public GerritCheckoutStep(List<GerritCheckoutTarget> targets) {
+        this.targets = targets != null ? targets : Collections.<GerritCheckoutTarget>emptyList();
+    }
+
+    public List<GerritCheckoutTarget> getTargets() {
+        return targets;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(this, context);
+    }
+
+    private static class Execution extends SynchronousNonBlockingStepExecution<Void> {
+        private static final long serialVersionUID = 1L;
+        private final transient GerritCheckoutStep step;
+
+        Execution(GerritCheckoutStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            Run<?, ?> run = getContext().get(Run.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+            FilePath workspace = getContext().get(FilePath.class);
+            EnvVars env = getContext().get(EnvVars.class);
+
+            String change = env.get("GERRIT_CHANGE_NUMBER");
+            String patchset = env.get("GERRIT_PATCHSET_NUMBER");
+            String defaultBranch = env.get("GERRIT_BRANCH");
+            if (change == null || patchset == null) {
+                listener.getLogger().println("No Gerrit Change to download");
+                return null;
+            }
+
+            List<ApplyTarget> applyTargets = new ArrayList<ApplyTarget>();
+            Set<String> dirs = new HashSet<String>();
+            for (GerritCheckoutTarget target : step.getTargets()) {
+                String branch = target.getBranch() != null ? target.getBranch() : defaultBranch;
+                if (branch == null) {
+                    throw new AbortException("No branch given for project " + target.getProject());
+                }
+                FilePath dir = workspace.child(target.getDir());
+                if (!dirs.add(dir.getRemote())) {
+                    throw new AbortException("Directory " + target.getDir() + " used for more than one project");
+                }
+                applyTargets.add(new ApplyTarget(target.getProject(), branch, dir.getRemote()));
+            }
+
+            PluginImpl plugin = PluginImpl.getInstance();
+            if (plugin == null) {
+                throw new AbortException("Gerrit Builder plugin not available");
+            }
+            Configuration config = plugin.getConfiguration();
+            StandardUsernamePasswordCredentials cred = ApiHelper.getCredentials(config.getCredentialsId());
+            GerritBuilderCause cause = run.getCause(GerritBuilderCause.class);
+            String submitGroup = cause != null ? cause.getSubmitGroup().toString() : null;
+            // Several projects, so always the submit preview
+            ApplyOptions options = GerritBuilderExtension.createApplyOptions(plugin, cause, workspace,
+                    FetchStrategy.SUBMIT_PREVIEW, listener);
+
+            workspace.act(new MultiChangeApplier(listener, cred, config.getGerritServerUrl(),
+                    Integer.valueOf(change), Integer.valueOf(patchset), submitGroup, applyTargets, options));
+            return null;
+        }
+    }
+
+    private static final class MultiChangeApplier extends jenkins.MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final TaskListener listener;
+        private final StandardUsernamePasswordCredentials credentials;
+        private final String url;
+        private final int change;
+        private final int patchset;
+        private final String submitGroup;
+        private final List<ApplyTarget> targets;
+        private final ApplyOptions options;
+
+        MultiChangeApplier(TaskListener listener, StandardUsernamePasswordCredentials credentials, String url,
+                int change, int patchset, String submitGroup, List<ApplyTarget> targets, ApplyOptions options) {
+            this.listener = listener;
+            this.credentials = credentials;
+            this.url = url;
+            this.change = change;
+            this.patchset = patchset;
+            this.submitGroup = submitGroup;
+            this.targets = targets;
+            this.options = options;
+        }
+
+        @Override
+        public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            PrintStream log = listener.getLogger();
+            log.println("Downloading Gerrit change " + change + "-" + patchset + " for " + targets);
+
+            GerritChangeFetcher fetcher = ApiHelper.createFetcher(url, credentials, log);
+            options.configure(fetcher);
+            try {
+                fetcher.prepareForBuild(targets, change, patchset, submitGroup);
+            } catch (IOException | GitAPIException | URISyntaxException | ConfigInvalidException | RestApiException e) {
+                log.println("Failed downloading Gerrit changes:" + e.toString());
+                throw new IOException(e);
+            } finally {
+                fetcher.close();
+            }
+            return null;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "gerritCheckout";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Apply Gerrit changes to several checked out projects";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<Class<?>>();
+            context.add(Run.class);
+            context.add(TaskListener.class);
+            context.add(FilePath.class);
+            context.add(EnvVars.class);
+            return context;
+        }
+    }
+}
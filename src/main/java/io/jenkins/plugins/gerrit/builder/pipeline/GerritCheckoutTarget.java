@@ -0,0 +1,56 @@
+package io.jenkins.plugins.gerrit.builder.pipeline;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * A Gerrit project checked out in a directory of the workspace, see
+ * {@link GerritCheckoutStep}.
+ */
+public class GerritCheckoutTarget extends AbstractDescribableImpl<GerritCheckoutTarget> {
+    private final String project;
+    private final String dir;
+    private String branch;
+
+    /**
+     * @param project The Gerrit project
+     * @param dir     Directory of the checkout, relative to the workspace
+     */
+    @DataBoundConstructor
+    public GerritCheckoutTarget(String project, String dir) {
+        this.project = project;
+        this.dir = dir;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    /**
+     * @return The branch, or null to use the branch of the build
+     */
+    public String getBranch() {
+        return branch;
+    }
+
+    @DataBoundSetter
+    public void setBranch(String branch) {
+        this.branch = branch;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<GerritCheckoutTarget> {
+        @Override
+        public String getDisplayName() {
+            return "Gerrit project checkout";
+        }
+    }
+}
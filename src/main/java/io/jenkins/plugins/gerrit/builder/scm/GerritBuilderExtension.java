@@ -3,6 +3,7 @@ package io.jenkins.plugins.gerrit.builder.scm;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.net.URISyntaxException;
 
 import org.eclipse.jgit.api.errors.GitAPIException;
@@ -15,6 +16,9 @@ import com.google.gerrit.extensions.restapi.RestApiException;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.plugins.git.GitException;
@@ -22,11 +26,21 @@ import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.extensions.GitSCMExtension;
 import hudson.plugins.git.extensions.GitSCMExtensionDescriptor;
 import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 import io.jenkins.plugins.gerrit.builder.ApiHelper;
+import io.jenkins.plugins.gerrit.builder.BundleStaging;
+import io.jenkins.plugins.gerrit.builder.Configuration;
+import io.jenkins.plugins.gerrit.builder.GerritBuilderCause;
 import io.jenkins.plugins.gerrit.builder.PluginImpl;
+import io.jenkins.plugins.gerrit.builder.fetcher.ApplyOptions;
+import io.jenkins.plugins.gerrit.builder.fetcher.BundleCache;
+import io.jenkins.plugins.gerrit.builder.fetcher.FetchStrategy;
 import io.jenkins.plugins.gerrit.builder.fetcher.GerritChangeFetcher;
+import io.jenkins.plugins.gerrit.builder.fetcher.SubmitGroup;
 
 public class GerritBuilderExtension extends GitSCMExtension {
+    static final String BUNDLE_CACHE_DIR = "gerrit-builder-cache";
+    static final String SHARED_OBJECTS_DIR = "gerrit-builder-objects.git";
 
     @DataBoundConstructor
     public GerritBuilderExtension() {
@@ -51,21 +65,105 @@ public class GerritBuilderExtension extends GitSCMExtension {
             log(listener, "Download Gerrit change in " + git.getWorkTree());
 
             PluginImpl plugin = PluginImpl.getInstance();
-            String credentialsId = plugin.getConfiguration().getCredentialsId();
+            Configuration config = plugin.getConfiguration();
+            String credentialsId = config.getCredentialsId();
             StandardUsernamePasswordCredentials cred = ApiHelper.getCredentials(credentialsId);
-            String url = plugin.getConfiguration().getGerritServerUrl();
+            String url = config.getGerritServerUrl();
+
+            GerritBuilderCause cause = build.getCause(GerritBuilderCause.class);
+            String submitGroup = cause != null ? cause.getSubmitGroup().toString() : null;
+
+            FetchStrategy fetchStrategy = cause != null ? cause.getFetchStrategy() : FetchStrategy.SUBMIT_PREVIEW;
+            ApplyOptions options = createApplyOptions(plugin, cause, git.getWorkTree(), fetchStrategy, listener);
 
             // Currently only implemented in "plain" jgit and not using the GitClient API
             // so we do this on the remote machine.
             // In order for this to properly work we need proper credentials.
-            git.getWorkTree().act(new ChangeApplier(listener, cred, url, Integer.valueOf(change),
-                    Integer.valueOf(patchset), project, branch));
+            ApplyResult result = git.getWorkTree().act(new ChangeApplier(listener, cred, url,
+                    Integer.valueOf(change), Integer.valueOf(patchset), project, branch, submitGroup, options));
+            plugin.getFetchStrategyStats().record(fetchStrategy, result.fetchStrategy, result.millis);
+            log(listener, "Applied changes using " + result.fetchStrategy + " in " + result.millis + " ms");
         } else {
             log(listener, "No Gerrit Change to download");
         }
     }
 
-    private static final class ChangeApplier extends jenkins.MasterToSlaveFileCallable<Void> {
+    /**
+     * Create the options for applying changes in a workspace from the global
+     * configuration, and copy the bundle staged by the controller to the agent.
+     *
+     * @param cause Cause of the build, or null if not triggered by this plugin
+     */
+    public static ApplyOptions createApplyOptions(PluginImpl plugin, GerritBuilderCause cause, FilePath workspace,
+            FetchStrategy fetchStrategy, TaskListener listener) throws IOException, InterruptedException {
+        Configuration config = plugin.getConfiguration();
+        ApplyOptions options = new ApplyOptions();
+        FilePath cacheDir = getBundleCacheDir(workspace);
+        if (cacheDir != null) {
+            options.setBundleCache(cacheDir.getRemote(), config.getAgentBundleCacheMb() * 1024L * 1024L);
+        }
+        options.setSparseSubmodules(config.getSparseSubmoduleUpdate());
+        options.setApplyThreads(config.getSubmoduleApplyThreads());
+        FilePath sharedObjectsDir = getNodeDir(workspace, SHARED_OBJECTS_DIR);
+        if (config.getAgentSharedObjectStore() && sharedObjectsDir != null) {
+            options.setSharedObjectStore(sharedObjectsDir.getRemote());
+        }
+        options.setFetchStrategy(fetchStrategy);
+        if (cause != null && fetchStrategy == FetchStrategy.SUBMIT_PREVIEW) {
+            stageBundle(plugin, cause, workspace, cacheDir, options, listener);
+        }
+        return options;
+    }
+
+    /**
+     * @return Directory for the bundle cache under the root of the node owning
+     *         the workspace, or null if the node is not known
+     */
+    static FilePath getBundleCacheDir(FilePath workspace) {
+        return getNodeDir(workspace, BUNDLE_CACHE_DIR);
+    }
+
+    /**
+     * @return Directory under the root of the node owning the workspace, or null
+     *         if the node is not known
+     */
+    private static FilePath getNodeDir(FilePath workspace, String name) {
+        Computer computer = workspace.toComputer();
+        Node node = computer != null ? computer.getNode() : null;
+        FilePath root = node != null ? node.getRootPath() : null;
+        return root != null ? root.child(name) : null;
+    }
+
+    /**
+     * Copy the bundle staged by the controller while the build was queued to the
+     * agent, unless the agent already has it cached.
+     */
+    private static void stageBundle(PluginImpl plugin, GerritBuilderCause cause, FilePath workspace, FilePath cacheDir,
+            ApplyOptions options, TaskListener listener) throws IOException, InterruptedException {
+        SubmitGroup submitGroup = cause.getSubmitGroup();
+        if (cacheDir != null && cacheDir.child(BundleCache.getFileName(BundleStaging.getKey(submitGroup))).exists()) {
+            return;
+        }
+        FilePath tmpDir = WorkspaceList.tempDir(workspace);
+        FilePath staged = tmpDir != null ? plugin.getBundleStaging().copyTo(submitGroup, tmpDir) : null;
+        if (staged != null) {
+            options.setStagedBundle(staged.getRemote());
+            listener.getLogger().println("Using bundle prefetched by the controller while the build was queued");
+        }
+    }
+
+    private static final class ApplyResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final FetchStrategy fetchStrategy;
+        private final long millis;
+
+        ApplyResult(FetchStrategy fetchStrategy, long millis) {
+            this.fetchStrategy = fetchStrategy;
+            this.millis = millis;
+        }
+    }
+
+    private static final class ChangeApplier extends jenkins.MasterToSlaveFileCallable<ApplyResult> {
         private static final long serialVersionUID = 1L;
         private int change;
         private int patchset;
@@ -74,9 +172,11 @@ public class GerritBuilderExtension extends GitSCMExtension {
         private TaskListener listener;
         private StandardUsernamePasswordCredentials credentials;
         private String url;
+        private String submitGroup;
+        private ApplyOptions options;
 
         public ChangeApplier(TaskListener listener, StandardUsernamePasswordCredentials credentials, String url,
-                int change, int patchset, String project, String branch) {
+                int change, int patchset, String project, String branch, String submitGroup, ApplyOptions options) {
             this.listener = listener;
             this.credentials = credentials;
             this.url = url;
@@ -84,10 +184,12 @@ public class GerritBuilderExtension extends GitSCMExtension {
             this.patchset = patchset;
             this.project = project;
             this.branch = branch;
+            this.submitGroup = submitGroup;
+            this.options = options;
         }
 
         @Override
-        public Void invoke(File workDir, VirtualChannel channel) throws IOException, InterruptedException {
+        public ApplyResult invoke(File workDir, VirtualChannel channel) throws IOException, InterruptedException {
             PrintStream log = listener.getLogger();
             log.println("Downloading Gerrit change(s) on node in directory " + workDir.getAbsolutePath());
             log.println("url:" + url);
@@ -97,13 +199,18 @@ public class GerritBuilderExtension extends GitSCMExtension {
             log.println("branch:" + branch);
 
             GerritChangeFetcher fetcher = ApiHelper.createFetcher(url, credentials, log);
+            options.configure(fetcher);
+            long start = System.currentTimeMillis();
             try {
-                fetcher.prepareForBuild(workDir, project, branch, change, patchset);
+                FetchStrategy used = fetcher.prepareForBuild(workDir, project, branch, change, patchset, submitGroup,
+                        options.getFetchStrategy());
+                return new ApplyResult(used, System.currentTimeMillis() - start);
             } catch (IOException | GitAPIException | URISyntaxException | ConfigInvalidException | RestApiException e) {
                 log.println("Failed downloading Gerrit changes:" + e.toString());
                 throw new IOException(e);
+            } finally {
+                fetcher.close();
             }
-            return null;
         }
     }
 
@@ -19,14 +19,21 @@ public class GerritProjectEvent {
   public final RefUpdate refUpdate;
   public final Approval approvals[];
   public final GerritChange change;
+  public final PatchSet patchSet;
   public final String type;
 
   public GerritProjectEvent(
-      GerritProjectName project, RefUpdate refUpdate, Approval approvals[], GerritChange change, String type) {
+      GerritProjectName project,
+      RefUpdate refUpdate,
+      Approval approvals[],
+      GerritChange change,
+      PatchSet patchSet,
+      String type) {
     this.project = project;
     this.refUpdate = refUpdate;
     this.approvals = approvals;
     this.change = change;
+    this.patchSet = patchSet;
     this.type = type;
   }
 
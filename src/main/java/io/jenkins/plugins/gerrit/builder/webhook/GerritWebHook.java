@@ -40,6 +40,7 @@ import hudson.model.RootAction;
 import hudson.model.UnprotectedRootAction;
 import hudson.security.ACL;
 import hudson.security.ACLContext;
+import io.jenkins.plugins.gerrit.builder.GerritBuilderMetrics;
 import io.jenkins.plugins.gerrit.builder.PluginImpl;
 import jenkins.model.Jenkins;
 
@@ -69,7 +70,13 @@ public class GerritWebHook implements UnprotectedRootAction {
     }
 
     public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        getBody(req, rsp).ifPresent(projectEvent -> {
+        GerritBuilderMetrics metrics = GerritBuilderMetrics.get();
+        metrics.webhookReceived();
+        Optional<GerritProjectEvent> event = getBody(req, rsp);
+        if (!event.isPresent()) {
+            metrics.webhookDropped();
+        }
+        event.ifPresent(projectEvent -> {
             String username = "anonymous";
             Authentication authentication = Jenkins.getAuthentication();
             if (authentication != null) {
@@ -0,0 +1,12 @@
+package io.jenkins.plugins.gerrit.builder.webhook;
+
+public class PatchSet {
+    public final int number;
+    // Seconds since the epoch
+    public final long createdOn;
+
+    public PatchSet(int number, long createdOn) {
+        this.number = number;
+        this.createdOn = createdOn;
+    }
+}
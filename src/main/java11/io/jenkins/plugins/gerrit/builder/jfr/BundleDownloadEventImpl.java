@@ -0,0 +1,38 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.jenkins.plugins.gerrit.builder.BundleDownload")
+@Label("Submit Preview Download")
+@Description("Download of the submit preview bundles of a change")
+@Category({ "Jenkins", "Gerrit Builder" })
+@StackTrace(false)
+public class BundleDownloadEventImpl extends jdk.jfr.Event implements BundleDownloadEvent {
+    @Label("Change Number")
+    int changeNumber;
+
+    @Label("Patch Set")
+    int patchset;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+
+    @Override
+    public void done(long bytes, boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.bytes = bytes;
+            this.success = success;
+            commit();
+        }
+    }
+}
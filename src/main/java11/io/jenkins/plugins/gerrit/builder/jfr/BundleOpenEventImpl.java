@@ -0,0 +1,35 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.jenkins.plugins.gerrit.builder.BundleOpen")
+@Label("Submit Preview Open")
+@Description("Reading the zip directory of a submit preview")
+@Category({ "Jenkins", "Gerrit Builder" })
+@StackTrace(false)
+public class BundleOpenEventImpl extends jdk.jfr.Event implements BundleOpenEvent {
+    @Label("File")
+    String file;
+
+    @Label("Projects")
+    int projects;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Override
+    public void done(int projects, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.projects = projects;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+/**
+ * Loaded by {@link JfrEvents} when the JVM has a Flight Recorder.
+ */
+public class EventFactoryImpl implements EventFactory {
+    @Override
+    public RestCallEvent beginRestCall(String endpoint, int changeNumber, int patchset) {
+        RestCallEventImpl event = new RestCallEventImpl();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.endpoint = endpoint;
+        event.changeNumber = changeNumber;
+        event.patchset = patchset;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public BundleDownloadEvent beginBundleDownload(int changeNumber, int patchset) {
+        BundleDownloadEventImpl event = new BundleDownloadEventImpl();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.changeNumber = changeNumber;
+        event.patchset = patchset;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public BundleOpenEvent beginBundleOpen(String file) {
+        BundleOpenEventImpl event = new BundleOpenEventImpl();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.file = file;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public JobMatchEvent beginJobMatch(int changeNumber, int groupSize, int builds, int jobs) {
+        JobMatchEventImpl event = new JobMatchEventImpl();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.changeNumber = changeNumber;
+        event.groupSize = groupSize;
+        event.builds = builds;
+        event.jobs = jobs;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public ScheduleBuildEvent beginScheduleBuild(String job, String project, String branch, int changeNumber,
+            int groupSize) {
+        ScheduleBuildEventImpl event = new ScheduleBuildEventImpl();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.job = job;
+        event.project = project;
+        event.branch = branch;
+        event.changeNumber = changeNumber;
+        event.groupSize = groupSize;
+        event.begin();
+        return event;
+    }
+}
@@ -0,0 +1,39 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.jenkins.plugins.gerrit.builder.JobMatch")
+@Label("Job Matching")
+@Description("Finding the Jenkins jobs that build the projects of a submit group")
+@Category({ "Jenkins", "Gerrit Builder" })
+@StackTrace(false)
+public class JobMatchEventImpl extends jdk.jfr.Event implements JobMatchEvent {
+    @Label("Change Number")
+    int changeNumber;
+
+    @Label("Group Size")
+    int groupSize;
+
+    @Label("Builds")
+    int builds;
+
+    @Label("Jobs")
+    @Description("Number of jobs that were checked")
+    int jobs;
+
+    @Label("Matched Jobs")
+    int matchedJobs;
+
+    @Override
+    public void done(int matchedJobs) {
+        end();
+        if (shouldCommit()) {
+            this.matchedJobs = matchedJobs;
+            commit();
+        }
+    }
+}
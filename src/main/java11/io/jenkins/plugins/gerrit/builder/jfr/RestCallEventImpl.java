@@ -0,0 +1,40 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.jenkins.plugins.gerrit.builder.RestCall")
+@Label("Gerrit REST Call")
+@Description("A call to the Gerrit REST API, e.g. submittedTogether")
+@Category({ "Jenkins", "Gerrit Builder" })
+@StackTrace(false)
+public class RestCallEventImpl extends jdk.jfr.Event implements RestCallEvent {
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Change Number")
+    int changeNumber;
+
+    @Label("Patch Set")
+    int patchset;
+
+    @Label("Results")
+    @Description("Number of changes returned, if any")
+    int results;
+
+    @Label("Success")
+    boolean success;
+
+    @Override
+    public void done(int results, boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.results = results;
+            this.success = success;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package io.jenkins.plugins.gerrit.builder.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.jenkins.plugins.gerrit.builder.ScheduleBuild")
+@Label("Schedule Build")
+@Description("Putting a build in the Jenkins queue")
+@Category({ "Jenkins", "Gerrit Builder" })
+@StackTrace(false)
+public class ScheduleBuildEventImpl extends jdk.jfr.Event implements ScheduleBuildEvent {
+    @Label("Job")
+    String job;
+
+    @Label("Project")
+    String project;
+
+    @Label("Branch")
+    String branch;
+
+    @Label("Change Number")
+    int changeNumber;
+
+    @Label("Group Size")
+    int groupSize;
+
+    @Override
+    public void done() {
+        commit();
+    }
+}